@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ImageProcessing.ImageBlurrer;
+import Profile.PeakFinder;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Micro-benchmarks for the hot paths of {@link RatiometricAnalyser}, run on
+ * synthetic stacks. Each benchmark is warmed up and then timed over a number
+ * of iterations; bytes allocated per frame are measured on the calling
+ * thread, so all stages are run with a single thread. Before timing, the
+ * recursive Gaussian is checked against the library blurs it can replace, and
+ * the benchmark fails if either differs by more than the tolerance, a
+ * percentage of the range of the reference.
+ *
+ * Usage: AnalyserBenchmark [-width w] [-height h] [-frames n] [-bits 8|16|32]
+ * [-warmup n] [-iterations n] [-tolerance percent] [-out results.csv]
+ *
+ * baseline.csv holds the results for the analyser before the fused ratio
+ * kernel, in the same format, for the work that already existed there:
+ * ratioDivide is the original ratio loop of analyse on its own, and
+ * indexWithDistanceMap is that loop followed by the original binning, the
+ * same work as the indexWithDistanceMap benchmark here. The original
+ * segmentation, distance map, velocity and profile code depends on the
+ * IAClasses library, and is not in the baseline. Compare rows by name, size
+ * and bit depth, and only with results from the same machine.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class AnalyserBenchmark {
+
+    interface Workload {
+
+        void run() throws Exception;
+    }
+
+    private int width = 512, height = 512, frames = 50, bitDepth = 16, warmup = 3, iterations = 10;
+    private double tolerance = 1.0;
+    private File out;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        AnalyserBenchmark bench = new AnalyserBenchmark();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-width":
+                    bench.width = Integer.parseInt(value);
+                    break;
+                case "-height":
+                    bench.height = Integer.parseInt(value);
+                    break;
+                case "-frames":
+                    bench.frames = Integer.parseInt(value);
+                    break;
+                case "-bits":
+                    bench.bitDepth = Integer.parseInt(value);
+                    break;
+                case "-warmup":
+                    bench.warmup = Integer.parseInt(value);
+                    break;
+                case "-iterations":
+                    bench.iterations = Integer.parseInt(value);
+                    break;
+                case "-tolerance":
+                    bench.tolerance = Double.parseDouble(value);
+                    break;
+                case "-out":
+                    bench.out = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        bench.runAll();
+    }
+
+    void runAll() throws Exception {
+        ImageStack stack1 = makeChannel(1), stack2 = makeChannel(2);
+        ImageStack edm = new ImageStack(width, height);
+        ImageStack compactEDM = new ImageStack(width, height);
+        ImageProcessor[] binaries = new ImageProcessor[frames];
+        float[] maxima = new float[frames];
+        for (int i = 1; i <= frames; i++) {
+            binaries[i - 1] = RatiometricAnalyser.makeBinaryProcessor(stack1.getProcessor(i), 1.0, "Default", 10);
+            DistanceTransform transform = DistanceTransform.compute(binaries[i - 1]);
+            edm.addSlice(transform.toFloatProcessor());
+            compactEDM.addSlice(transform.toShortProcessor());
+            maxima[i - 1] = transform.getMax();
+        }
+        final int edmMax = RatiometricAnalyser.getMaxDistance(maxima);
+        RatiometricAnalyser ra = new RatiometricAnalyser(1.0, 20.0, "Default", 10, 1.0, 1.0, 0.5, 1);
+        FrameExecutor executor = new FrameExecutor(1);
+        File dir = Files.createTempDirectory("ratiometric-bench").toFile();
+        ImageStack ratio = new ImageStack(width, height);
+        double[][] data = new double[frames][];
+        ra.indexWithDistanceMap(stack1, stack2, edm, edmMax, ratio, data, executor);
+        int maxDist = data[0].length - 1;
+        for (double[] row : data) {
+            maxDist = Math.max(maxDist, row.length - 1);
+        }
+        final int bins = maxDist + 1;
+        final float[] ratioPixels = new float[width * height];
+        final DistanceBinAccumulator accumulator = new DistanceBinAccumulator();
+        final RatioKernel kernel = new RatioKernel(width);
+
+        PrintWriter results = null;
+        if (out != null) {
+            boolean header = !out.exists();
+            results = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out, true), "UTF-8"));
+            if (header) {
+                results.println("Benchmark,Width,Height,Frames,Bit Depth,ms/op,Frames/s,Bytes/frame");
+            }
+        }
+        checkGaussian(stack1, data);
+        System.out.println(String.format("%-22s %12s %12s %14s", "Benchmark", "ms/op", "frames/s", "bytes/frame"));
+        measure("ratioKernel", frames, results, () -> {
+            for (int i = 1; i <= frames; i++) {
+                accumulator.reset(bins);
+                kernel.process(stack1.getPixels(i), stack2.getPixels(i), edm.getPixels(i), height, ratioPixels, accumulator);
+            }
+        });
+        final RatioKernel gatedKernel = new RatioKernel(width);
+        gatedKernel.setBackground(10.0f, 10.0f);
+        gatedKernel.setDivideByZeroValue(Float.NaN);
+        gatedKernel.setMaskGated(true);
+        measure("ratioKernelGated", frames, results, () -> {
+            for (int i = 1; i <= frames; i++) {
+                accumulator.reset(bins);
+                gatedKernel.process(stack1.getPixels(i), stack2.getPixels(i), edm.getPixels(i), height, ratioPixels, accumulator);
+            }
+        });
+        measure("distanceTransform", frames, results, () -> {
+            for (ImageProcessor binary : binaries) {
+                DistanceTransform.compute(binary);
+            }
+        });
+        measure("distanceTransformTiled", frames, results, () -> {
+            for (ImageProcessor binary : binaries) {
+                DistanceTransform.compute(binary, 256, RatiometricAnalyser.DEFAULT_EXPECTED_MAX_DISTANCE);
+            }
+        });
+        final double[][] rows = new double[frames][edmMax + 1];
+        measure("indexWithDistanceMap", frames, results, () -> ra.indexWithDistanceMap(stack1, stack2, edm, edmMax, null, rows, executor));
+        measure("indexCompactEDM", frames, results, () -> ra.indexWithDistanceMap(stack1, stack2, compactEDM, edmMax, null, rows, executor));
+        final RatioEncoding encoding = new RatioEncoding(0.0, 1.0e-4);
+        measure("encodeRatio", frames, results, () -> {
+            for (int i = 1; i <= frames; i++) {
+                encoding.encode((float[]) ratio.getPixels(i));
+            }
+        });
+        measure("estimateVelocity", frames, results, () -> ra.estimateVelocity(edm, executor));
+        measure("plotProfilePoints", frames, results, () -> ra.plotProfilePoints(data, dir.getAbsolutePath()));
+        measure("makeBinaryStack", frames, results, () -> RatiometricAnalyser.makeBinaryStack(stack1, 1.0, "Default", 10));
+        measure("makeBinaryStackRecursive", frames, results, () -> RatiometricAnalyser.makeBinaryStack(stack1, 1.0, "Default", 10, true));
+        measure("recursiveGaussian", frames, results, () -> {
+            RecursiveGaussian gaussian = new RecursiveGaussian(20.0);
+            for (int i = 1; i <= frames; i++) {
+                gaussian.blur(stack1.getProcessor(i).duplicate());
+            }
+        });
+        measure("maskBlurTiled", frames, results, () -> {
+            RecursiveGaussian gaussian = new RecursiveGaussian(1.0);
+            for (int i = 1; i <= frames; i++) {
+                gaussian.blurTiles(stack1.getProcessor(i), 256);
+            }
+        });
+        if (results != null) {
+            results.close();
+        }
+        executor.shutdown();
+    }
+
+    void measure(String name, int framesPerOp, PrintWriter results, Workload workload) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            workload.run();
+        }
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            workload.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = bytes >= 0 ? allocatedBytes() - bytes : -1;
+        double msPerOp = elapsed / 1.0e6 / iterations;
+        double fps = framesPerOp * iterations / (elapsed / 1.0e9);
+        long bytesPerFrame = allocated >= 0 ? allocated / ((long) framesPerOp * iterations) : -1;
+        System.out.println(String.format(Locale.ROOT, "%-22s %12.3f %12.1f %14d", name, msPerOp, fps, bytesPerFrame));
+        if (results != null) {
+            results.println(String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%f,%f,%d", name, width, height, frames, bitDepth, msPerOp, fps, bytesPerFrame));
+        }
+    }
+
+    /**
+     * Reports the largest difference, relative to the range of the reference,
+     * between the recursive Gaussian and ImageBlurrer on the first frame at
+     * the default mask blur, and PeakFinder on the map at the default map
+     * smoothing.
+     *
+     * @throws IllegalStateException if either difference exceeds the
+     * tolerance
+     */
+    void checkGaussian(ImageStack stack, double[][] map) {
+        ImageStack reference = new ImageStack(width, height);
+        reference.addSlice(stack.getProcessor(1).duplicate());
+        ImageBlurrer.blurStack(reference, 1.0);
+        ImageProcessor recursive = stack.getProcessor(1).duplicate();
+        new RecursiveGaussian(1.0).blur(recursive);
+        float[] expected = new float[width * height];
+        float[] actual = new float[width * height];
+        float[] row = new float[width];
+        for (int y = 0; y < height; y++) {
+            RatioKernel.getRow(reference.getProcessor(1).getPixels(), y * width, width, row);
+            System.arraycopy(row, 0, expected, y * width, width);
+            RatioKernel.getRow(recursive.getPixels(), y * width, width, row);
+            System.arraycopy(row, 0, actual, y * width, width);
+        }
+        double[][] smoothed = PeakFinder.smoothData2D(map, 20.0);
+        double[][] recursiveMap = new RecursiveGaussian(20.0).blur(map);
+        double[] e = new double[smoothed.length * smoothed[0].length];
+        double[] a = new double[e.length];
+        for (int i = 0; i < smoothed.length; i++) {
+            System.arraycopy(smoothed[i], 0, e, i * smoothed[0].length, smoothed[0].length);
+            System.arraycopy(recursiveMap[i], 0, a, i * smoothed[0].length, smoothed[0].length);
+        }
+        boolean passed = reportError("maskBlur (sigma 1)", toDouble(expected), toDouble(actual));
+        passed &= reportError("mapSmoothing (sigma 20)", e, a);
+        if (!passed) {
+            throw new IllegalStateException(String.format(Locale.ROOT,
+                    "The recursive Gaussian differs from the reference by more than %.3f%% of its range.", tolerance));
+        }
+    }
+
+    /**
+     * @return true if the error is within the tolerance
+     */
+    private boolean reportError(String name, double[] expected, double[] actual) {
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, error = 0.0;
+        for (int i = 0; i < expected.length; i++) {
+            min = Math.min(min, expected[i]);
+            max = Math.max(max, expected[i]);
+            error = Math.max(error, Math.abs(expected[i] - actual[i]));
+        }
+        double relative = max > min ? error / (max - min) : error;
+        boolean passed = 100.0 * relative <= tolerance;
+        System.out.println(String.format(Locale.ROOT, "%-22s max error %.4g (%.3f%% of range) %s", name, error, 100.0 * relative,
+                passed ? "ok" : "FAILED"));
+        return passed;
+    }
+
+    private static double[] toDouble(float[] values) {
+        double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i];
+        }
+        return result;
+    }
+
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+            if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()) {
+                return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A bright disc that drifts across the field, with the channel 1 signal
+     * rising towards the cell centre and Gaussian noise on both channels.
+     */
+    ImageStack makeChannel(int channel) {
+        Random random = new Random(channel);
+        ImageStack stack = new ImageStack(width, height);
+        double radius = Math.min(width, height) / 4.0;
+        double max = bitDepth == 8 ? 255.0 : bitDepth == 16 ? 65535.0 : Double.MAX_VALUE;
+        double scale = bitDepth == 8 ? 1.0 : 100.0;
+        for (int t = 0; t < frames; t++) {
+            double cx = width / 2.0 + (t - frames / 2.0) * radius / Math.max(frames, 1);
+            double cy = height / 2.0;
+            float[] values = new float[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double d = Math.sqrt((x - cx) * (x - cx) + (y - cy) * (y - cy));
+                    double v = 10.0;
+                    if (d < radius) {
+                        v = channel == 1 ? 100.0 + 100.0 * (1.0 - d / radius) : 100.0;
+                    }
+                    v = Math.max(0.0, Math.min(max, (v + random.nextGaussian() * 5.0) * scale / 2.0));
+                    values[y * width + x] = (float) v;
+                }
+            }
+            stack.addSlice(toProcessor(values));
+        }
+        return stack;
+    }
+
+    private ImageProcessor toProcessor(float[] values) {
+        switch (bitDepth) {
+            case 8: {
+                byte[] pixels = new byte[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    pixels[i] = (byte) Math.round(values[i]);
+                }
+                return new ByteProcessor(width, height, pixels, null);
+            }
+            case 16: {
+                short[] pixels = new short[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    pixels[i] = (short) Math.round(values[i]);
+                }
+                return new ShortProcessor(width, height, pixels, null);
+            }
+            default:
+                return new FloatProcessor(width, height, values, null);
+        }
+    }
+}
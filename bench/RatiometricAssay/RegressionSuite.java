@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import UtilClasses.GenVariables;
+import ij.ImageStack;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Analyses {@link SyntheticFret} datasets of increasing size and checks
+ * Map.csv, ProfilePoints.csv and Velocities.csv against the known ground
+ * truth, recording the runtime and peak heap usage of each analysis. Exits
+ * with status 1 if any output is out of tolerance.
+ *
+ * Map bins are compared with the ratio half a pixel inside the edge,
+ * because distances are measured to the centre of the nearest background
+ * pixel, allowing for an error of edgeTolerance pixels in the segmented
+ * edge and for the noise of the pixels in each bin. Bins within three
+ * standard deviations of the map smoothing of either end of the profile are
+ * not compared. Profile points are compared with those found in the
+ * smoothed ground truth map. Velocities are compared with the swept area
+ * divided by the perimeter pixel count, which is 8r rather than 2 pi r for
+ * a digitised disc of radius r.
+ *
+ * Usage: RegressionSuite [-sizes 128x128x20,256x256x40,...] [-bits 8|16|32]
+ * [-noise fraction] [-seed n] [-sigma map smoothing] [-parallelism n]
+ * [-edgeTolerance pixels] [-profileTolerance pixels]
+ * [-velocityTolerance fraction] [-compactEDM true|false]
+ * [-ratioScale scale] [-out results.csv]
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class RegressionSuite {
+
+    private static final double SPATIAL_RES = 1.0, TIME_RES = 1.0;
+    private String sizes = "128x128x20,256x256x40,512x512x80";
+    private int bitDepth = 16, parallelism = Runtime.getRuntime().availableProcessors();
+    private long seed = 1;
+    private double noise = 0.02, sigma = 2.0;
+    private double edgeTolerance = 1.5, profileTolerance = 2.0, velocityTolerance = 0.15;
+    private boolean compactEDM;
+    private RatioEncoding ratioEncoding;
+    private File out;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        RegressionSuite suite = new RegressionSuite();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-sizes":
+                    suite.sizes = value;
+                    break;
+                case "-bits":
+                    suite.bitDepth = Integer.parseInt(value);
+                    break;
+                case "-noise":
+                    suite.noise = Double.parseDouble(value);
+                    break;
+                case "-seed":
+                    suite.seed = Long.parseLong(value);
+                    break;
+                case "-sigma":
+                    suite.sigma = Double.parseDouble(value);
+                    break;
+                case "-parallelism":
+                    suite.parallelism = Integer.parseInt(value);
+                    break;
+                case "-edgeTolerance":
+                    suite.edgeTolerance = Double.parseDouble(value);
+                    break;
+                case "-profileTolerance":
+                    suite.profileTolerance = Double.parseDouble(value);
+                    break;
+                case "-velocityTolerance":
+                    suite.velocityTolerance = Double.parseDouble(value);
+                    break;
+                case "-compactEDM":
+                    suite.compactEDM = Boolean.parseBoolean(value);
+                    break;
+                case "-ratioScale":
+                    suite.ratioEncoding = new RatioEncoding(0.0, Double.parseDouble(value));
+                    break;
+                case "-out":
+                    suite.out = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        System.exit(suite.runAll() ? 0 : 1);
+    }
+
+    /**
+     * @return true if every dataset passes
+     */
+    boolean runAll() throws IOException {
+        PrintWriter results = null;
+        if (out != null) {
+            boolean header = !out.exists();
+            results = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out, true), "UTF-8"));
+            if (header) {
+                results.println("Width,Height,Frames,Bit Depth,Noise,Runtime (s),Peak Heap (MB),Map Failures,Profile Failures,Velocity Failures");
+            }
+        }
+        System.out.println(String.format("%-16s %10s %12s %8s %8s %8s", "Dataset", "runtime s", "peak heap MB", "map", "profile", "velocity"));
+        boolean passed = true;
+        try {
+            for (String size : sizes.split(",")) {
+                String[] dims = size.trim().split("x");
+                if (dims.length != 3) {
+                    throw new IllegalArgumentException("Sizes must be given as widthxheightxframes: " + size);
+                }
+                SyntheticFret fret = new SyntheticFret(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]), Integer.parseInt(dims[2]));
+                fret.setBitDepth(bitDepth);
+                fret.setNoise(noise);
+                fret.setSeed(seed);
+                passed &= run(size.trim(), fret, results);
+            }
+        } finally {
+            if (results != null) {
+                results.close();
+            }
+        }
+        System.out.println(passed ? "All datasets passed." : "Some datasets failed.");
+        return passed;
+    }
+
+    boolean run(String name, SyntheticFret fret, PrintWriter results) throws IOException {
+        ImageStack acceptor = fret.makeAcceptor(), donor = fret.makeDonor();
+        File dir = Files.createTempDirectory("ratiometric-regression").toFile();
+        RatiometricAnalyser ra = new RatiometricAnalyser(1.0, sigma, "Default", 10, SPATIAL_RES, TIME_RES, 0.5, parallelism);
+        ra.setCheckpointing(false);
+        ra.setCompactEDM(compactEDM);
+        ra.setRatioEncoding(ratioEncoding);
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+        ra.analyse(acceptor, donor, dir.getAbsolutePath(), false);
+        double runtime = (System.nanoTime() - start) / 1.0e9;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        double[][] map = read(new File(dir, "Map.csv"), false);
+        int mapFailures = checkMap(name, fret, map);
+        int profileFailures = checkProfilePoints(name, fret, ra, map, read(new File(dir, "ProfilePoints.csv"), true));
+        int velocityFailures = checkVelocities(name, fret, read(new File(dir, "Velocities.csv"), true));
+        double peakMB = peak / (1024.0 * 1024.0);
+        System.out.println(String.format(Locale.ROOT, "%-16s %10.3f %12.1f %8d %8d %8d", name, runtime, peakMB,
+                mapFailures, profileFailures, velocityFailures));
+        if (results != null) {
+            results.println(String.format(Locale.ROOT, "%d,%d,%d,%d,%f,%f,%f,%d,%d,%d", fret.getWidth(), fret.getHeight(),
+                    fret.getFrames(), fret.getBitDepth(), noise, runtime, peakMB, mapFailures, profileFailures, velocityFailures));
+        }
+        boolean passed = mapFailures == 0 && profileFailures == 0 && velocityFailures == 0;
+        if (!passed) {
+            System.out.println(String.format("%s: the outputs are in %s", name, dir.getAbsolutePath()));
+        }
+        return passed;
+    }
+
+    /**
+     * Compares every bin that is far enough from both ends of the profile in
+     * every frame with the ratio half a pixel inside the edge.
+     */
+    int checkMap(String name, SyntheticFret fret, double[][] map) {
+        int margin = (int) Math.ceil(3.0 * sigma);
+        double minRadius = Double.MAX_VALUE;
+        for (int t = 0; t < fret.getFrames(); t++) {
+            minRadius = Math.min(minRadius, fret.getRadius(t));
+        }
+        int last = (int) Math.floor(minRadius) - 1 - margin;
+        if (last <= margin) {
+            System.out.println(String.format("%s: the cell is too small to compare the map.", name));
+            return 1;
+        }
+        int failures = 0;
+        for (int t = 0; t < map.length; t++) {
+            double radius = fret.getRadius(t);
+            for (int k = margin + 1; k <= last && k < map[t].length; k++) {
+                double expected = fret.getRatio(k - 0.5);
+                double pixels = 2.0 * Math.PI * (radius - k + 0.5);
+                double tolerance = Math.abs(fret.getSlope()) * edgeTolerance + 4.0 * fret.getRatioNoise(k) / Math.sqrt(pixels);
+                if (!(Math.abs(map[t][k] - expected) <= tolerance)) {
+                    failures += report(name, "Map", t, k, map[t][k], expected, tolerance);
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Finds the profile points of the ground truth map, smoothed as the
+     * analyser smooths the measured map, and compares the edges of the
+     * region above threshold with those in ProfilePoints.csv.
+     */
+    int checkProfilePoints(String name, SyntheticFret fret, RatiometricAnalyser ra, double[][] map, double[][] points) {
+        double[][] truth = new double[map.length][map.length > 0 ? map[0].length : 0];
+        for (int t = 0; t < truth.length; t++) {
+            int bins = (int) Math.round(fret.getRadius(t) + 0.5);
+            truth[t][0] = fret.getBackgroundRatio();
+            for (int k = 1; k < truth[t].length && k <= bins; k++) {
+                truth[t][k] = fret.getRatio(k - 0.5);
+            }
+        }
+        double[][] smoothed = new RecursiveGaussian(sigma).blur(truth);
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (double[] row : smoothed) {
+            for (double v : row) {
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+        }
+        int failures = 0;
+        double tolerance = profileTolerance * SPATIAL_RES;
+        for (int t = 0; t < smoothed.length; t++) {
+            double[] expected = ra.findProfilePoints(smoothed[t], t, min, max);
+            for (int j = 1; j < 3; j++) {
+                double actual = j < points[t].length ? points[t][j] : Double.NaN;
+                double e = j < expected.length ? expected[j] : Double.NaN;
+                if (Double.isNaN(actual) != Double.isNaN(e) || Math.abs(actual - e) > tolerance) {
+                    failures += report(name, j == 1 ? "ProfilePoints x1" : "ProfilePoints x2", t, j, actual, e, tolerance);
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Compares the velocity of every frame that has a frame on either side,
+     * the first and last being copies of their neighbours.
+     */
+    int checkVelocities(String name, SyntheticFret fret, double[][] velocities) {
+        int failures = 0;
+        for (int t = 1; t < velocities.length - 1; t++) {
+            double expected = fret.getEdgeVelocity(t) * Math.PI / 4.0 * SPATIAL_RES / TIME_RES;
+            double tolerance = velocityTolerance * Math.abs(expected) + 0.05 * SPATIAL_RES / TIME_RES;
+            if (!(Math.abs(velocities[t][1] - expected) <= tolerance)) {
+                failures += report(name, "Velocity", t, 1, velocities[t][1], expected, tolerance);
+            }
+        }
+        return failures;
+    }
+
+    private int report(String name, String output, int frame, int column, double actual, double expected, double tolerance) {
+        System.out.println(String.format(Locale.ROOT, "%s: %s frame %d column %d is %g, expected %g +/- %g",
+                name, output, frame, column, actual, expected, tolerance));
+        return 1;
+    }
+
+    /**
+     * Reads a CSV file written by {@link CsvResultWriter}, skipping the
+     * headings if there are any. Values that are not numbers are NaN.
+     */
+    static double[][] read(File file, boolean headings) throws IOException {
+        ArrayList<double[]> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), GenVariables.ISO))) {
+            if (headings) {
+                reader.readLine();
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",", -1);
+                double[] row = new double[fields.length];
+                for (int j = 0; j < fields.length; j++) {
+                    try {
+                        row[j] = Double.parseDouble(fields[j]);
+                    } catch (NumberFormatException e) {
+                        row[j] = Double.NaN;
+                    }
+                }
+                rows.add(row);
+            }
+        }
+        return rows.toArray(new double[rows.size()][]);
+    }
+}
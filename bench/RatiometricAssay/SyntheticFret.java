@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+/**
+ * Generates deterministic pairs of acceptor and donor stacks of a single
+ * disc-shaped cell that moves at constant velocity and grows at a constant
+ * rate. The donor is uniform within the cell, and the acceptor to donor
+ * ratio rises linearly with distance from the cell edge, so the ratio
+ * profile, the edge position and the edge velocity of every frame are known
+ * exactly. Gaussian noise, proportional to the donor intensity, is added to
+ * both channels from a seeded generator, so the same parameters always give
+ * the same stacks.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class SyntheticFret {
+
+    private final int width, height, frames;
+    private int bitDepth = 16;
+    private double noise = 0.02;
+    private long seed = 1;
+    private double radius, growth, x0, y0, vx, vy;
+    private double edgeRatio = 1.0, slope;
+
+    /**
+     * By default, the cell starts in the centre of the field with a radius
+     * of a sixth of the smaller dimension, drifts a sixth of that dimension
+     * along x and grows by half over the series, and the ratio doubles
+     * between the edge and the initial radius.
+     */
+    public SyntheticFret(int width, int height, int frames) {
+        if (frames < 3) {
+            throw new IllegalArgumentException("At least three frames are needed to estimate velocities.");
+        }
+        this.width = width;
+        this.height = height;
+        this.frames = frames;
+        double size = Math.min(width, height);
+        this.radius = size / 6.0;
+        this.growth = radius / 2.0 / (frames - 1);
+        this.vx = size / 6.0 / (frames - 1);
+        this.x0 = width / 2.0 - vx * (frames - 1) / 2.0;
+        this.y0 = height / 2.0;
+        this.slope = edgeRatio / radius;
+    }
+
+    public void setBitDepth(int bitDepth) {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) {
+            throw new IllegalArgumentException("Bit depth must be 8, 16 or 32.");
+        }
+        this.bitDepth = bitDepth;
+    }
+
+    /**
+     * Sets the standard deviation of the noise as a fraction of the donor
+     * intensity.
+     */
+    public void setNoise(double noise) {
+        this.noise = noise;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the velocity of the cell centre, in pixels per frame.
+     */
+    public void setMotion(double vx, double vy) {
+        this.vx = vx;
+        this.vy = vy;
+        this.x0 = width / 2.0 - vx * (frames - 1) / 2.0;
+        this.y0 = height / 2.0 - vy * (frames - 1) / 2.0;
+    }
+
+    /**
+     * Sets the radius of the cell in the first frame and the amount by which
+     * it grows every frame, in pixels.
+     */
+    public void setGrowth(double radius, double growth) {
+        this.radius = radius;
+        this.growth = growth;
+    }
+
+    /**
+     * Sets the ratio at the cell edge and its increase per pixel of distance
+     * from the edge.
+     */
+    public void setRatio(double edgeRatio, double slope) {
+        this.edgeRatio = edgeRatio;
+        this.slope = slope;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    public double getSlope() {
+        return slope;
+    }
+
+    /**
+     * Returns the radius of the cell in frame t, numbered from zero.
+     */
+    public double getRadius(int t) {
+        return radius + growth * t;
+    }
+
+    public double getCentreX(int t) {
+        return x0 + vx * t;
+    }
+
+    public double getCentreY(int t) {
+        return y0 + vy * t;
+    }
+
+    /**
+     * Returns the ratio at the specified distance, in pixels, from the cell
+     * edge.
+     */
+    public double getRatio(double distance) {
+        return edgeRatio + slope * distance;
+    }
+
+    /**
+     * Returns the ratio of the background, where both channels have the same
+     * intensity.
+     */
+    public double getBackgroundRatio() {
+        return 1.0;
+    }
+
+    /**
+     * Returns the standard deviation of the ratio of a single pixel at the
+     * specified distance from the edge, to first order in the noise.
+     */
+    public double getRatioNoise(double distance) {
+        double r = getRatio(distance);
+        return noise * Math.sqrt(1.0 + r * r);
+    }
+
+    /**
+     * Returns the mean speed of the edge along its normal in frame t, in
+     * pixels per frame, measured as the area swept between frames t - 1 and
+     * t + 1 divided by twice the perimeter in frame t.
+     */
+    public double getEdgeVelocity(int t) {
+        double r1 = getRadius(t - 1), r2 = getRadius(t + 1);
+        double dx = getCentreX(t + 1) - getCentreX(t - 1);
+        double dy = getCentreY(t + 1) - getCentreY(t - 1);
+        double swept = Math.PI * (r1 * r1 + r2 * r2) - 2.0 * overlap(r1, r2, Math.sqrt(dx * dx + dy * dy));
+        return swept / (2.0 * 2.0 * Math.PI * getRadius(t));
+    }
+
+    /**
+     * Returns the area of the intersection of two discs of radii r1 and r2
+     * whose centres are d apart.
+     */
+    static double overlap(double r1, double r2, double d) {
+        if (d >= r1 + r2) {
+            return 0.0;
+        }
+        if (d <= Math.abs(r1 - r2)) {
+            double r = Math.min(r1, r2);
+            return Math.PI * r * r;
+        }
+        double a1 = r1 * r1 * Math.acos((d * d + r1 * r1 - r2 * r2) / (2.0 * d * r1));
+        double a2 = r2 * r2 * Math.acos((d * d + r2 * r2 - r1 * r1) / (2.0 * d * r2));
+        return a1 + a2 - 0.5 * Math.sqrt((-d + r1 + r2) * (d + r1 - r2) * (d - r1 + r2) * (d + r1 + r2));
+    }
+
+    /**
+     * The acceptor channel, whose ratio to the donor is computed and which
+     * is segmented.
+     */
+    public ImageStack makeAcceptor() {
+        return makeChannel(true);
+    }
+
+    public ImageStack makeDonor() {
+        return makeChannel(false);
+    }
+
+    private ImageStack makeChannel(boolean acceptor) {
+        for (int t = 0; t < frames; t += frames - 1) {
+            double r = getRadius(t);
+            if (r <= 0.0 || getCentreX(t) - r < 1.0 || getCentreX(t) + r > width - 2.0
+                    || getCentreY(t) - r < 1.0 || getCentreY(t) + r > height - 2.0) {
+                throw new IllegalArgumentException("The cell must lie within the field in every frame.");
+            }
+        }
+        Random random = new Random(31 * seed + (acceptor ? 1 : 2));
+        double donor = bitDepth == 8 ? 80.0 : 1000.0;
+        double background = donor / 10.0;
+        double max = bitDepth == 8 ? 255.0 : bitDepth == 16 ? 65535.0 : Double.MAX_VALUE;
+        ImageStack stack = new ImageStack(width, height);
+        for (int t = 0; t < frames; t++) {
+            double cx = getCentreX(t), cy = getCentreY(t), r = getRadius(t);
+            float[] values = new float[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double distance = r - Math.sqrt((x - cx) * (x - cx) + (y - cy) * (y - cy));
+                    double v = background;
+                    if (distance > 0.0) {
+                        v = acceptor ? donor * getRatio(distance) : donor;
+                    }
+                    values[y * width + x] = (float) Math.max(0.0, Math.min(max, v + random.nextGaussian() * noise * donor));
+                }
+            }
+            stack.addSlice(toProcessor(values));
+        }
+        return stack;
+    }
+
+    private ImageProcessor toProcessor(float[] values) {
+        switch (bitDepth) {
+            case 8: {
+                byte[] pixels = new byte[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    pixels[i] = (byte) Math.round(values[i]);
+                }
+                return new ByteProcessor(width, height, pixels, null);
+            }
+            case 16: {
+                short[] pixels = new short[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    pixels[i] = (short) Math.round(values[i]);
+                }
+                return new ShortProcessor(width, height, pixels, null);
+            }
+            default:
+                return new FloatProcessor(width, height, values, null);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches an acquisition directory for single-frame channel 1 and channel 2
+ * files, such as t00001_C1.tif and t00001_C2.tif, and passes each pair to a
+ * {@link LiveAnalysis} as soon as both files have been completely written.
+ * A file is taken to be complete once its size and modification time have
+ * not changed for the settle time.
+ *
+ * Frames are ordered by the last number in their prefix, such as 1 in
+ * t00001, or by name if there is none. A complete pair is held back while
+ * any earlier frame has a file still being written or is waiting for its
+ * other channel, so frames reach the analysis in order of acquisition even
+ * if their files settle out of order. Frame numbers that never appear, such
+ * as dropped frames, do not hold later frames back.
+ *
+ * Watching stops when {@link #stop()} is called or when no new frame has
+ * arrived for the idle timeout. Every complete pair still held back is then
+ * processed, in order, frames left without both channels are logged, and
+ * the live analysis is finished. A frame whose files cannot be read, or do
+ * not match the dimensions of the first frame, is logged and dropped.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class AcquisitionWatcher {
+
+    public static final String IDLE_TIMEOUT = "idleTimeout", SETTLE_TIME = "settleTime";
+    private static final String USAGE = "Usage: AcquisitionWatcher <acquisition directory> <parameters.properties> <output directory>";
+    private static final long POLL_MILLIS = 50L;
+    private final File dir;
+    private final String channel1Suffix, channel2Suffix;
+    private final LiveAnalysis analysis;
+    private final AnalysisMetrics metrics;
+    private static final Comparator<String> FRAME_ORDER = Comparator.comparingLong(AcquisitionWatcher::getFrameIndex)
+            .thenComparing(Comparator.naturalOrder());
+    private final Map<String, PendingFile> pending = new HashMap<>();
+    private final TreeSet<String> ready1 = new TreeSet<>(FRAME_ORDER), ready2 = new TreeSet<>(FRAME_ORDER);
+    private final int batchSize;
+    private long settleMillis = 200L;
+    private long idleMillis = 300000L;
+    private volatile boolean stopped;
+    private int width = -1, height = -1;
+    private int dropped;
+
+    public AcquisitionWatcher(File dir, String channel1Suffix, String channel2Suffix, LiveAnalysis analysis) {
+        this.dir = dir;
+        this.channel1Suffix = channel1Suffix;
+        this.channel2Suffix = channel2Suffix;
+        this.analysis = analysis;
+        this.metrics = analysis.getMetrics();
+        this.batchSize = analysis.getBatchSize();
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length != 3) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            Properties params = BatchRunner.loadParameters(new File(args[1]));
+            BatchRunner runner = new BatchRunner(params);
+            File output = new File(args[2]);
+            if (!(output.isDirectory() || output.mkdirs())) {
+                throw new IOException(String.format("Cannot create %s", output.getAbsolutePath()));
+            }
+            LiveAnalysis analysis = new LiveAnalysis(runner.createAnalyser(), output.getAbsolutePath());
+            AcquisitionWatcher watcher = new AcquisitionWatcher(new File(args[0]), runner.getChannel1Suffix(), runner.getChannel2Suffix(), analysis);
+            watcher.setIdleTimeout(Long.parseLong(params.getProperty(IDLE_TIMEOUT, "300")) * 1000L);
+            watcher.setSettleTime(Long.parseLong(params.getProperty(SETTLE_TIME, "200")));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                watcher.stop();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            int frames = watcher.run();
+            IJ.log(String.format("Live analysis complete: %d frames.", frames));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            System.err.println(e.toString());
+            done.countDown();
+            System.exit(2);
+        }
+        done.countDown();
+        System.exit(0);
+    }
+
+    /**
+     * Stop watching if no new frame arrives for this long. Zero or less
+     * waits indefinitely.
+     */
+    public void setIdleTimeout(long millis) {
+        this.idleMillis = millis;
+    }
+
+    /**
+     * A file is complete once it has not changed for this long.
+     */
+    public void setSettleTime(long millis) {
+        this.settleMillis = millis;
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Processes frames until stopped or idle, then finishes the analysis.
+     *
+     * @return the number of frames processed
+     */
+    public int run() throws IOException, InterruptedException {
+        Path path = dir.toPath();
+        try (WatchService watcher = path.getFileSystem().newWatchService()) {
+            path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            scan();
+            long lastFrame = System.nanoTime();
+            while (!stopped) {
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scan();
+                        } else {
+                            track(((Path) event.context()).toFile().getName());
+                        }
+                    }
+                    if (!key.reset()) {
+                        IJ.log(String.format("%s is no longer accessible.", dir.getAbsolutePath()));
+                        break;
+                    }
+                }
+                if (processReady(false)) {
+                    lastFrame = System.nanoTime();
+                } else if (idleMillis > 0L && System.nanoTime() - lastFrame > idleMillis * 1000000L) {
+                    IJ.log(String.format("No new frames for %d s - stopping.", idleMillis / 1000L));
+                    break;
+                }
+            }
+            flushReady();
+            analysis.finish();
+        } finally {
+            analysis.close();
+        }
+        return analysis.getFrameCount();
+    }
+
+    private void scan() throws IOException {
+        String[] names = dir.list();
+        if (names == null) {
+            throw new IOException(String.format("Cannot read %s", dir.getAbsolutePath()));
+        }
+        for (String name : names) {
+            track(name);
+        }
+    }
+
+    private void track(String name) {
+        if ((name.endsWith(channel1Suffix) || name.endsWith(channel2Suffix)) && !pending.containsKey(name)) {
+            pending.put(name, new PendingFile(new File(dir, name)));
+        }
+    }
+
+    /**
+     * Moves settled files to the ready sets and processes, in order, every
+     * frame for which both channels are ready and no earlier frame is
+     * incomplete.
+     *
+     * @param flush if true, incomplete frames no longer hold later frames
+     * back, as no more files are expected
+     * @return true if any frames were processed
+     */
+    private boolean processReady(boolean flush) throws IOException {
+        long now = System.nanoTime();
+        String firstIncomplete = null;
+        for (Iterator<PendingFile> it = pending.values().iterator(); it.hasNext();) {
+            PendingFile f = it.next();
+            String prefix = getPrefix(f.file.getName());
+            if (f.isSettled(now, settleMillis * 1000000L)) {
+                if (f.file.getName().endsWith(channel1Suffix)) {
+                    ready1.add(prefix);
+                } else {
+                    ready2.add(prefix);
+                }
+                it.remove();
+            } else if (!flush && (firstIncomplete == null || FRAME_ORDER.compare(prefix, firstIncomplete) < 0)) {
+                firstIncomplete = prefix;
+            }
+        }
+        for (TreeSet<String> ready : flush ? Collections.<TreeSet<String>>emptyList() : Arrays.asList(ready1, ready2)) {
+            for (String prefix : ready) {
+                if (!(ready1.contains(prefix) && ready2.contains(prefix))) {
+                    if (firstIncomplete == null || FRAME_ORDER.compare(prefix, firstIncomplete) < 0) {
+                        firstIncomplete = prefix;
+                    }
+                    break;
+                }
+            }
+        }
+        ArrayList<String> frames = new ArrayList<>();
+        for (String prefix : ready1) {
+            if (firstIncomplete != null && FRAME_ORDER.compare(prefix, firstIncomplete) >= 0) {
+                break;
+            }
+            if (ready2.contains(prefix)) {
+                frames.add(prefix);
+            }
+        }
+        for (int start = 0; start < frames.size(); start += batchSize) {
+            processFrames(frames.subList(start, Math.min(frames.size(), start + batchSize)));
+        }
+        return !frames.isEmpty();
+    }
+
+    /**
+     * Processes every complete pair still held back, then logs the frames
+     * that never received both channels.
+     */
+    private void flushReady() throws IOException {
+        processReady(true);
+        TreeSet<String> unpaired = new TreeSet<>(FRAME_ORDER);
+        unpaired.addAll(ready1);
+        unpaired.addAll(ready2);
+        for (PendingFile f : pending.values()) {
+            unpaired.add(getPrefix(f.file.getName()));
+        }
+        for (String prefix : unpaired) {
+            IJ.log(String.format("%s: frame incomplete - dropped.", prefix));
+        }
+        if (dropped + unpaired.size() > 0) {
+            IJ.log(String.format("%d frames dropped.", dropped + unpaired.size()));
+        }
+    }
+
+    private void processFrames(List<String> prefixes) throws IOException {
+        int n = prefixes.size();
+        ImageProcessor[] channel1 = new ImageProcessor[n];
+        ImageProcessor[] channel2 = new ImageProcessor[n];
+        long[] acquired = new long[n];
+        String[] names = new String[n];
+        int count = 0;
+        for (String prefix : prefixes) {
+            File file1 = new File(dir, prefix + channel1Suffix);
+            File file2 = new File(dir, prefix + channel2Suffix);
+            ready1.remove(prefix);
+            ready2.remove(prefix);
+            try {
+                channel1[count] = MappedTiffStack.openStack(file1).getProcessor(1);
+                channel2[count] = MappedTiffStack.openStack(file2).getProcessor(1);
+                checkDimensions(channel1[count], channel2[count], prefix);
+            } catch (IOException | RuntimeException e) {
+                IJ.log(String.format("%s: frame dropped - %s", prefix, e));
+                dropped++;
+                continue;
+            }
+            acquired[count] = Math.max(file1.lastModified(), file2.lastModified());
+            names[count++] = prefix;
+        }
+        if (count < 1) {
+            return;
+        }
+        analysis.addFrames(Arrays.copyOf(channel1, count), Arrays.copyOf(channel2, count));
+        long now = System.currentTimeMillis();
+        long nanos = System.nanoTime();
+        long latency = 0L;
+        for (int i = 0; i < count; i++) {
+            latency = Math.max(0L, now - acquired[i]);
+            metrics.recordFrame("Live latency", nanos - latency * 1000000L, -1L);
+        }
+        IJ.log(String.format("%s: frame %d ready %d ms after acquisition.", names[count - 1], analysis.getFrameCount(), latency));
+    }
+
+    private String getPrefix(String name) {
+        String suffix = name.endsWith(channel1Suffix) ? channel1Suffix : channel2Suffix;
+        return name.substring(0, name.length() - suffix.length());
+    }
+
+    /**
+     * Returns the last number in a frame prefix, or -1 if there is none.
+     */
+    static long getFrameIndex(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && !Character.isDigit(prefix.charAt(end - 1))) {
+            end--;
+        }
+        int start = end;
+        while (start > 0 && Character.isDigit(prefix.charAt(start - 1)) && end - start < 18) {
+            start--;
+        }
+        return start < end ? Long.parseLong(prefix.substring(start, end)) : -1L;
+    }
+
+    private void checkDimensions(ImageProcessor ip1, ImageProcessor ip2, String prefix) throws IOException {
+        if (ip1.getWidth() != ip2.getWidth() || ip1.getHeight() != ip2.getHeight()) {
+            throw new IOException(String.format("The channels of frame %s do not match.", prefix));
+        }
+        if (width < 0) {
+            width = ip1.getWidth();
+            height = ip1.getHeight();
+        } else if (ip1.getWidth() != width || ip1.getHeight() != height) {
+            throw new IOException(String.format("Frame %s does not match the dimensions of the first frame.", prefix));
+        }
+    }
+
+    private static class PendingFile {
+
+        final File file;
+        long size = -1L, modified = -1L, changed;
+
+        PendingFile(File file) {
+            this.file = file;
+            this.changed = System.nanoTime();
+        }
+
+        boolean isSettled(long now, long settleNanos) {
+            long s = file.length();
+            long m = file.lastModified();
+            if (s != size || m != modified) {
+                size = s;
+                modified = m;
+                changed = now;
+                return false;
+            }
+            return size > 0L && now - changed >= settleNanos;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+/**
+ * Thrown from within an analysis when it has been cancelled through its
+ * {@link AnalysisMonitor}.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class AnalysisCancelledException extends RuntimeException {
+
+    public AnalysisCancelledException() {
+        super("Analysis cancelled.");
+    }
+
+    public AnalysisCancelledException(Throwable cause) {
+        super("Analysis cancelled.", cause);
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.IJ;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records wall time, per-frame latency and allocated bytes for each stage of
+ * an analysis. Per-frame samples may be recorded from any thread. Allocation
+ * is measured per thread, so it is only available on JVMs that support
+ * {@code com.sun.management.ThreadMXBean}.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class AnalysisMetrics {
+
+    public static final String FILENAME = "metrics.json";
+    private static final com.sun.management.ThreadMXBean THREADS = getThreadBean();
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private final long created = System.nanoTime();
+    private final int parallelism;
+    private int frames;
+    private int width;
+    private int height;
+
+    public AnalysisMetrics(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns the bytes allocated so far by the current thread, or -1 if the
+     * JVM cannot measure this.
+     */
+    public static long allocatedBytes() {
+        return THREADS != null ? THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1L;
+    }
+
+    public void setInput(int frames, int width, int height) {
+        this.frames = frames;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Records one frame of a stage, timed from {@code startNanos} and
+     * {@code startBytes} on the current thread.
+     */
+    public void recordFrame(String stage, long startNanos, long startBytes) {
+        long nanos = System.nanoTime() - startNanos;
+        getStage(stage).addFrame(nanos, allocated(startBytes));
+    }
+
+    /**
+     * Records the wall time of a stage whose frames are recorded separately,
+     * typically on other threads.
+     */
+    public void recordWall(String stage, long startNanos) {
+        getStage(stage).addWall(System.nanoTime() - startNanos, 0L);
+    }
+
+    /**
+     * Records the wall time and allocation of a stage that runs entirely on
+     * the current thread.
+     */
+    public void recordSerial(String stage, long startNanos, long startBytes) {
+        long nanos = System.nanoTime() - startNanos;
+        getStage(stage).addWall(nanos, allocated(startBytes));
+    }
+
+    public synchronized List<Stage> getStages() {
+        return new ArrayList<>(stages.values());
+    }
+
+    public void write(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.printf(Locale.ROOT, "  \"parallelism\": %d,%n", parallelism);
+            out.printf(Locale.ROOT, "  \"frames\": %d,%n", frames);
+            out.printf(Locale.ROOT, "  \"width\": %d,%n", width);
+            out.printf(Locale.ROOT, "  \"height\": %d,%n", height);
+            out.printf(Locale.ROOT, "  \"totalSeconds\": %s,%n", number((System.nanoTime() - created) * 1.0e-9));
+            out.println("  \"stages\": [");
+            List<Stage> list = getStages();
+            for (int i = 0; i < list.size(); i++) {
+                out.print(list.get(i).toJson("    ", (long) width * height));
+                out.println(i < list.size() - 1 ? "," : "");
+            }
+            out.println("  ]");
+            out.println("}");
+            if (out.checkError()) {
+                throw new IOException(String.format("Failed to write %s", file));
+            }
+        }
+    }
+
+    public void log() {
+        IJ.log(String.format("Stage timings (%d threads, %.3f s total):", parallelism, (System.nanoTime() - created) * 1.0e-9));
+        for (Stage s : getStages()) {
+            IJ.log(s.toString((long) width * height));
+        }
+    }
+
+    private synchronized Stage getStage(String name) {
+        Stage s = stages.get(name);
+        if (s == null) {
+            s = new Stage(name);
+            stages.put(name, s);
+        }
+        return s;
+    }
+
+    private static long allocated(long startBytes) {
+        return startBytes < 0L ? -1L : allocatedBytes() - startBytes;
+    }
+
+    /**
+     * Returns the bean that measures allocation per thread, or null, after
+     * logging once why the bytes in the metrics will be reported as -1.
+     */
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        String reason = "this JVM does not support it";
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+                if (sunBean.isThreadAllocatedMemorySupported()) {
+                    sunBean.setThreadAllocatedMemoryEnabled(true);
+                    return sunBean;
+                }
+            }
+        } catch (LinkageError | RuntimeException e) {
+            // Not being able to measure allocation should never stop an
+            // analysis, so any failure only disables the measurement
+            reason = e.toString();
+        }
+        IJ.log(String.format("Allocation metrics are unavailable (%s); allocated bytes will be reported as -1.", reason));
+        return null;
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.format(Locale.ROOT, "%.6g", value);
+    }
+
+    /**
+     * Timings for one stage. Frame latencies are kept so that percentiles can
+     * be reported; wall time is the sum of all wall samples.
+     */
+    public static class Stage {
+
+        private final String name;
+        private long[] latencies = new long[16];
+        private int count;
+        private long frameNanos;
+        private long wallNanos;
+        private long bytes;
+        private boolean bytesKnown = true;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        synchronized void addFrame(long nanos, long allocated) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, 2 * count);
+            }
+            latencies[count++] = nanos;
+            frameNanos += nanos;
+            addBytes(allocated);
+        }
+
+        synchronized void addWall(long nanos, long allocated) {
+            wallNanos += nanos;
+            addBytes(allocated);
+        }
+
+        private void addBytes(long allocated) {
+            if (allocated < 0L) {
+                bytesKnown = false;
+            } else {
+                bytes += allocated;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public synchronized int getFrames() {
+            return count;
+        }
+
+        public synchronized double getWallSeconds() {
+            return wallNanos * 1.0e-9;
+        }
+
+        /**
+         * Total time spent in individual frames, summed over all threads.
+         */
+        public synchronized double getFrameSeconds() {
+            return frameNanos * 1.0e-9;
+        }
+
+        /**
+         * Frames per second of wall time, or NaN if the stage has no wall time
+         * or no frames.
+         */
+        public synchronized double getFramesPerSecond() {
+            return count > 0 && wallNanos > 0L ? count / (wallNanos * 1.0e-9) : Double.NaN;
+        }
+
+        /**
+         * Pixels per second of wall time, in billions, for frames of the
+         * specified size, or NaN if frames per second is NaN.
+         */
+        public synchronized double getGigapixelsPerSecond(long framePixels) {
+            return getFramesPerSecond() * framePixels * 1.0e-9;
+        }
+
+        /**
+         * Returns the specified percentile of the frame latencies in
+         * milliseconds, using the nearest-rank method.
+         */
+        public synchronized double getLatencyPercentile(double p) {
+            if (count < 1) {
+                return Double.NaN;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(p / 100.0 * count);
+            return sorted[Math.max(0, Math.min(count, rank) - 1)] * 1.0e-6;
+        }
+
+        /**
+         * Returns the bytes allocated by this stage, or -1 if unknown.
+         */
+        public synchronized long getAllocatedBytes() {
+            return bytesKnown ? bytes : -1L;
+        }
+
+        synchronized String toJson(String indent, long framePixels) {
+            StringBuilder json = new StringBuilder();
+            json.append(indent).append("{\"name\": \"").append(name.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\", \"frames\": ").append(count)
+                    .append(", \"wallSeconds\": ").append(wallNanos > 0L ? number(getWallSeconds()) : "null")
+                    .append(", \"frameSeconds\": ").append(count > 0 ? number(getFrameSeconds()) : "null")
+                    .append(", \"framesPerSecond\": ").append(number(getFramesPerSecond()))
+                    .append(", \"gigapixelsPerSecond\": ").append(number(getGigapixelsPerSecond(framePixels)))
+                    .append(", \"latencyMs\": ");
+            if (count > 0) {
+                json.append(String.format(Locale.ROOT, "{\"mean\": %s, \"p50\": %s, \"p90\": %s, \"p99\": %s, \"max\": %s}",
+                        number(frameNanos * 1.0e-6 / count), number(getLatencyPercentile(50.0)),
+                        number(getLatencyPercentile(90.0)), number(getLatencyPercentile(99.0)),
+                        number(getLatencyPercentile(100.0))));
+            } else {
+                json.append("null");
+            }
+            json.append(", \"allocatedBytes\": ").append(bytesKnown ? Long.toString(bytes) : "null").append("}");
+            return json.toString();
+        }
+
+        @Override
+        public String toString() {
+            return toString(0L);
+        }
+
+        /**
+         * Also reports gigapixels per second if framePixels is positive.
+         */
+        public synchronized String toString(long framePixels) {
+            StringBuilder s = new StringBuilder(name).append(':');
+            if (wallNanos > 0L) {
+                s.append(String.format(" %.3f s", getWallSeconds()));
+            }
+            if (count > 0) {
+                s.append(String.format(" %d frames, p50 %.2f ms, p99 %.2f ms", count,
+                        getLatencyPercentile(50.0), getLatencyPercentile(99.0)));
+                if (wallNanos > 0L) {
+                    s.append(String.format(", %.1f fps", getFramesPerSecond()));
+                    if (framePixels > 0L) {
+                        s.append(String.format(", %.3f Gpixel/s", getGigapixelsPerSecond(framePixels)));
+                    }
+                }
+            }
+            if (bytesKnown) {
+                s.append(String.format(", %.1f MB allocated", bytes / 1048576.0));
+            }
+            return s.toString();
+        }
+    }
+}
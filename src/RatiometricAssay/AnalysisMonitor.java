@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.IJ;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks per-stage, per-frame progress of an analysis and allows it to be
+ * cancelled from another thread. Cancellation is cooperative: it is checked
+ * before each frame is processed.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class AnalysisMonitor {
+
+    private final boolean useImageJ;
+    private volatile boolean cancelled;
+    private volatile String stage = "";
+    private volatile int total;
+    private final AtomicInteger done = new AtomicInteger();
+
+    /**
+     * @param useImageJ if true, progress is shown in the ImageJ status and
+     * progress bars, and pressing Esc in ImageJ cancels the analysis. An Esc
+     * pressed before the monitor is created is cleared, as it was meant for
+     * something else
+     */
+    public AnalysisMonitor(boolean useImageJ) {
+        this.useImageJ = useImageJ;
+        if (useImageJ) {
+            IJ.resetEscape();
+        }
+    }
+
+    public void startStage(String stage, int total) {
+        this.stage = stage;
+        this.total = total;
+        this.done.set(0);
+        if (useImageJ) {
+            IJ.showStatus(stage);
+            IJ.showProgress(0.0);
+        }
+    }
+
+    public void frameDone() {
+        int n = done.incrementAndGet();
+        if (useImageJ) {
+            IJ.showStatus(String.format("%s: frame %d of %d", stage, n, total));
+            IJ.showProgress(n, total);
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        if (!cancelled && useImageJ && IJ.escapePressed()) {
+            // Consumed here, so that it does not also cancel the next run
+            IJ.resetEscape();
+            cancelled = true;
+        }
+        return cancelled;
+    }
+
+    public void checkCancelled() {
+        if (isCancelled()) {
+            throw new AnalysisCancelledException();
+        }
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public int getFramesDone() {
+        return done.get();
+    }
+
+    public int getFramesTotal() {
+        return total;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import UtilClasses.GenVariables;
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Runs the analysis headless over many pairs of stacks, listed either in a
+ * CSV manifest (stack 1, stack 2 and an optional name per line) or found in
+ * a directory by their file name suffixes. All experiments share one
+ * work-stealing pool and each gets its own output directory.
+ *
+ * Parameters are read from a properties file using the keys below; any that
+ * are missing take the same defaults as the dialog, apart from the spatial
+ * and temporal resolutions, which default to 1.0 rather than the dialog's
+ * 0, so that velocities are in pixels per frame rather than undefined.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class BatchRunner {
+
+    public static final String MASK_BLUR_RADIUS = "maskBlurRadius", SIG_BLUR_RADIUS = "sigBlurRadius",
+            THRESH_METHOD = "threshMethod", HOLE_SIZE = "holeSize", SPATIAL_RES = "spatialRes",
+            TIME_RES = "timeRes", THRESHOLD = "threshold", PARALLELISM = "parallelism",
+            STREAMING = "streaming", MAP_STATISTIC = "mapStatistic", LOG_METRICS = "logMetrics", OUTPUT_FORMAT = "outputFormat",
+            PER_OBJECT = "perObject", MIN_OBJECT_AREA = "minObjectArea", CHANNEL_1_SUFFIX = "channel1Suffix", CHANNEL_2_SUFFIX = "channel2Suffix",
+            CHECKPOINT = "checkpoint", TILE_ROWS = "tileRows", EXPECTED_MAX_DISTANCE = "expectedMaxDistance",
+            CACHE_DIR = "cacheDir", CACHE_SIZE_MB = "cacheSizeMB", SAVE_EDM = "saveEDM",
+            BACKGROUND_1 = "background1", BACKGROUND_2 = "background2", ROLLING_BALL_RADIUS = "rollingBallRadius",
+            MASK_GATED = "maskGated", DIVIDE_BY_ZERO_VALUE = "divideByZeroValue", COMPACT_EDM = "compactEDM",
+            RATIO_OFFSET = "ratioOffset", RATIO_SCALE = "ratioScale", RECURSIVE_GAUSSIAN = "recursiveGaussian";
+    private static final String USAGE = "Usage: BatchRunner <manifest.csv | input directory> <parameters.properties> <output directory>";
+
+    private final double maskBlurRadius, sigBlurRadius, spatialRes, timeRes, threshold;
+    private final double background1, background2, rollingBallRadius;
+    private final Float divideByZeroValue;
+    private final RatioEncoding ratioEncoding;
+    private final String threshMethod, outputFormat, channel1Suffix, channel2Suffix;
+    private final int holeSize, parallelism, minObjectArea, tileRows, expectedMaxDistance;
+    private final boolean streaming, logMetrics, perObject, checkpoint, saveEDM, maskGated, compactEDM, recursiveGaussian;
+    private final DistanceBinAccumulator.Statistic mapStatistic;
+    private final StageCache stageCache;
+
+    public BatchRunner(Properties params) {
+        this.maskBlurRadius = Double.parseDouble(params.getProperty(MASK_BLUR_RADIUS, "1.0"));
+        this.sigBlurRadius = Double.parseDouble(params.getProperty(SIG_BLUR_RADIUS, "20.0"));
+        this.threshMethod = params.getProperty(THRESH_METHOD, AutoThresholder.Method.Triangle.toString());
+        this.holeSize = Integer.parseInt(params.getProperty(HOLE_SIZE, "10"));
+        this.spatialRes = Double.parseDouble(params.getProperty(SPATIAL_RES, "1.0"));
+        this.timeRes = Double.parseDouble(params.getProperty(TIME_RES, "1.0"));
+        this.threshold = Double.parseDouble(params.getProperty(THRESHOLD, "0.5"));
+        this.parallelism = Integer.parseInt(params.getProperty(PARALLELISM, String.valueOf(Runtime.getRuntime().availableProcessors())));
+        this.streaming = Boolean.parseBoolean(params.getProperty(STREAMING, "false"));
+        this.mapStatistic = DistanceBinAccumulator.Statistic.valueOf(params.getProperty(MAP_STATISTIC, "MEAN"));
+        this.logMetrics = Boolean.parseBoolean(params.getProperty(LOG_METRICS, "false"));
+        this.outputFormat = params.getProperty(OUTPUT_FORMAT, "csv");
+        this.perObject = Boolean.parseBoolean(params.getProperty(PER_OBJECT, "false"));
+        this.minObjectArea = Integer.parseInt(params.getProperty(MIN_OBJECT_AREA, "1"));
+        this.channel1Suffix = params.getProperty(CHANNEL_1_SUFFIX, "_C1.tif");
+        this.channel2Suffix = params.getProperty(CHANNEL_2_SUFFIX, "_C2.tif");
+        this.checkpoint = Boolean.parseBoolean(params.getProperty(CHECKPOINT, "false"));
+        this.saveEDM = Boolean.parseBoolean(params.getProperty(SAVE_EDM, "true"));
+        this.background1 = Double.parseDouble(params.getProperty(BACKGROUND_1, "0.0"));
+        this.background2 = Double.parseDouble(params.getProperty(BACKGROUND_2, "0.0"));
+        this.rollingBallRadius = Double.parseDouble(params.getProperty(ROLLING_BALL_RADIUS, "0.0"));
+        this.maskGated = Boolean.parseBoolean(params.getProperty(MASK_GATED, "false"));
+        String zero = params.getProperty(DIVIDE_BY_ZERO_VALUE);
+        this.divideByZeroValue = zero != null ? Float.valueOf(zero) : null;
+        this.compactEDM = Boolean.parseBoolean(params.getProperty(COMPACT_EDM, "false"));
+        this.recursiveGaussian = Boolean.parseBoolean(params.getProperty(RECURSIVE_GAUSSIAN, "false"));
+        String scale = params.getProperty(RATIO_SCALE);
+        this.ratioEncoding = scale != null ? new RatioEncoding(Double.parseDouble(params.getProperty(RATIO_OFFSET, "0.0")),
+                Double.parseDouble(scale)) : null;
+        this.tileRows = Integer.parseInt(params.getProperty(TILE_ROWS, "0"));
+        this.expectedMaxDistance = Integer.parseInt(params.getProperty(EXPECTED_MAX_DISTANCE,
+                String.valueOf(RatiometricAnalyser.DEFAULT_EXPECTED_MAX_DISTANCE)));
+        String cacheDir = params.getProperty(CACHE_DIR);
+        this.stageCache = cacheDir != null ? new StageCache(new File(cacheDir), Long.parseLong(params.getProperty(CACHE_SIZE_MB,
+                String.valueOf(StageCache.DEFAULT_MAX_BYTES >> 20))) << 20) : null;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length != 3) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            BatchRunner runner = new BatchRunner(loadParameters(new File(args[1])));
+            List<Job> jobs = runner.listJobs(new File(args[0]));
+            System.exit(runner.run(jobs, new File(args[2])) > 0 ? 1 : 0);
+        } catch (IOException | RuntimeException e) {
+            System.err.println(e.toString());
+            System.exit(2);
+        }
+    }
+
+    public static Properties loadParameters(File file) throws IOException {
+        Properties params = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            params.load(in);
+        }
+        return params;
+    }
+
+    public List<Job> listJobs(File input) throws IOException {
+        ArrayList<Job> jobs = new ArrayList<>();
+        if (input.isDirectory()) {
+            File[] files = input.listFiles();
+            if (files == null) {
+                throw new IOException(String.format("Cannot read %s", input.getAbsolutePath()));
+            }
+            Arrays.sort(files);
+            for (File f : files) {
+                String name = f.getName();
+                if (!name.endsWith(channel1Suffix)) {
+                    continue;
+                }
+                String prefix = name.substring(0, name.length() - channel1Suffix.length());
+                File partner = new File(input, prefix + channel2Suffix);
+                if (partner.isFile()) {
+                    jobs.add(new Job(prefix, f, partner));
+                } else {
+                    IJ.log(String.format("No %s file found for %s - skipping.", channel2Suffix, name));
+                }
+            }
+        } else {
+            File base = input.getAbsoluteFile().getParentFile();
+            HashMap<String, Long> lines = new HashMap<>();
+            try (Reader reader = new InputStreamReader(new FileInputStream(input), GenVariables.ISO);
+                    CSVParser parser = CSVFormat.EXCEL.withCommentMarker('#').withIgnoreEmptyLines(true).withTrim().parse(reader)) {
+                for (CSVRecord record : parser) {
+                    if (record.size() < 2) {
+                        throw new IOException(String.format("Line %d of %s must list two stacks.", record.getRecordNumber(), input.getName()));
+                    }
+                    File stack1 = resolve(base, record.get(0));
+                    File stack2 = resolve(base, record.get(1));
+                    String name = record.size() > 2 && !record.get(2).isEmpty() ? record.get(2) : stripExtension(stack1.getName());
+                    Long previous = lines.putIfAbsent(name.toLowerCase(Locale.ROOT), record.getRecordNumber());
+                    if (previous != null) {
+                        throw new IOException(String.format("Lines %d and %d of %s would both write to %s; give them different names.",
+                                previous, record.getRecordNumber(), input.getName(), name));
+                    }
+                    jobs.add(new Job(name, stack1, stack2));
+                }
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Analyses each job in its own subdirectory of outputRoot. Job names are
+     * compared ignoring case, as some file systems do, and must be unique so
+     * that no job overwrites the results of another. Names must also be
+     * plain directory names, without path separators or "..", so that no
+     * job writes outside outputRoot.
+     *
+     * @return the number of jobs that failed
+     */
+    public int run(List<Job> jobs, File outputRoot) {
+        HashSet<String> names = new HashSet<>();
+        for (Job job : jobs) {
+            if (job.name.isEmpty() || job.name.equals(".") || job.name.contains("/") || job.name.contains("\\") || job.name.contains("..")
+                    || new File(job.name).isAbsolute()) {
+                throw new IllegalArgumentException(String.format("%s cannot be used as a job name.", job.name));
+            }
+            if (!names.add(job.name.toLowerCase(Locale.ROOT))) {
+                throw new IllegalArgumentException(String.format("More than one job is named %s.", job.name));
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        AtomicInteger failures = new AtomicInteger();
+        try {
+            ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (Job job : jobs) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        runJob(job, outputRoot, pool);
+                        IJ.log(String.format("%s done.", job.name));
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        IJ.log(String.format("%s failed: %s", job.name, e.toString()));
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        IJ.log(String.format("Batch complete: %d of %d experiments failed.", failures.get(), jobs.size()));
+        return failures.get();
+    }
+
+    void runJob(Job job, File outputRoot, ForkJoinPool pool) throws IOException {
+        Path root = outputRoot.toPath().toAbsolutePath().normalize();
+        Path resolved = root.resolve(job.name).normalize();
+        if (!resolved.getParent().equals(root)) {
+            throw new IOException(String.format("%s is not a directory within %s", job.name, outputRoot.getAbsolutePath()));
+        }
+        File dir = resolved.toFile();
+        if (!(dir.isDirectory() || dir.mkdirs())) {
+            throw new IOException(String.format("Cannot create %s", dir.getAbsolutePath()));
+        }
+        ImageStack stack1 = MappedTiffStack.openStack(job.stack1);
+        ImageStack stack2 = MappedTiffStack.openStack(job.stack2);
+        if (stack1.size() != stack2.size()
+                || stack1.getWidth() != stack2.getWidth()
+                || stack1.getHeight() != stack2.getHeight()) {
+            throw new IOException("Stack dimensions must match.");
+        }
+        RatiometricAnalyser ra = createAnalyser();
+        ra.setPool(pool);
+        if (perObject) {
+            ObjectAnalysis objects = new ObjectAnalysis(ra);
+            objects.setMinArea(minObjectArea);
+            objects.analyse(stack1, stack2, dir.getAbsolutePath());
+        } else if (streaming) {
+            ra.analyseStreaming(stack1, stack2, dir.getAbsolutePath(), false);
+        } else {
+            ra.analyse(stack1, stack2, dir.getAbsolutePath(), false);
+        }
+    }
+
+    /**
+     * Returns an analyser configured with these parameters.
+     */
+    public RatiometricAnalyser createAnalyser() {
+        RatiometricAnalyser ra = new RatiometricAnalyser(maskBlurRadius, sigBlurRadius, threshMethod, holeSize, spatialRes, timeRes, threshold, parallelism);
+        ra.setMapStatistic(mapStatistic);
+        ra.setLogMetrics(logMetrics);
+        ra.setResultWriter(ResultWriter.forFormat(outputFormat));
+        ra.setCheckpointing(checkpoint);
+        ra.setTiling(tileRows, expectedMaxDistance);
+        ra.setStageCache(stageCache);
+        ra.setSaveEDM(saveEDM);
+        ra.setRecursiveGaussian(recursiveGaussian);
+        ra.setBackground(background1, background2, rollingBallRadius);
+        ra.setMaskGated(maskGated);
+        ra.setDivideByZeroValue(divideByZeroValue);
+        ra.setCompactEDM(compactEDM);
+        ra.setRatioEncoding(ratioEncoding);
+        return ra;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public String getChannel1Suffix() {
+        return channel1Suffix;
+    }
+
+    public String getChannel2Suffix() {
+        return channel2Suffix;
+    }
+
+    private static File resolve(File base, String path) {
+        File f = new File(path);
+        return f.isAbsolute() ? f : new File(base, path);
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    public static class Job {
+
+        final String name;
+        final File stack1, stack2;
+
+        public Job(String name, File stack1, File stack2) {
+            this.name = name;
+            this.stack1 = stack1;
+            this.stack2 = stack2;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+/**
+ * A binary mask packed 64 pixels to a word, in row-major order. Masks are
+ * made directly from a distance map: a pixel is foreground if its distance
+ * is non-zero, and is counted as perimeter if its distance rounds to one.
+ * A mask covers either the whole frame or, for a single object, a rectangle
+ * of it; coordinates are always those of the frame.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class BitMask {
+
+    private final int x0, y0;
+    private final int width;
+    private final int height;
+    private final long[] words;
+    private final int perimeter;
+
+    private BitMask(int x0, int y0, int width, int height, long[] words, int perimeter) {
+        this.x0 = x0;
+        this.y0 = y0;
+        this.width = width;
+        this.height = height;
+        this.words = words;
+        this.perimeter = perimeter;
+    }
+
+    /**
+     * Builds the mask and counts the perimeter in a single pass over the
+     * specified distance map pixels.
+     */
+    public static BitMask fromDistanceMap(Object edmPixels, int width, int height) {
+        long[] words = new long[(int) (((long) width * height + 63) / 64)];
+        float[] row = new float[width];
+        int perimeter = 0;
+        int index = 0;
+        for (int y = 0; y < height; y++) {
+            RatioKernel.getRow(edmPixels, y * width, width, row);
+            for (int x = 0; x < width; x++, index++) {
+                float d = row[x];
+                if (d > 0.0f) {
+                    words[index >>> 6] |= 1L << index;
+                    if (d < 1.5f) {
+                        perimeter++;
+                    }
+                }
+            }
+        }
+        return new BitMask(0, 0, width, height, words, perimeter);
+    }
+
+    /**
+     * Builds the mask of one labelled object, counting as perimeter those of
+     * its pixels whose distance from the edge of the field mask rounds to one.
+     * The mask covers the object's bounding box grown by one pixel, within
+     * the frame.
+     *
+     * @param bounds the object's bounding box, {minX, minY, maxX, maxY}
+     */
+    public static BitMask fromLabels(int[] labels, int label, int[] bounds, float[] edm, int width, int height) {
+        int x0 = Math.max(0, bounds[0] - 1);
+        int y0 = Math.max(0, bounds[1] - 1);
+        int w = Math.min(width - 1, bounds[2] + 1) - x0 + 1;
+        int h = Math.min(height - 1, bounds[3] + 1) - y0 + 1;
+        long[] words = new long[(int) (((long) w * h + 63) / 64)];
+        int perimeter = 0;
+        for (int y = bounds[1]; y <= bounds[3]; y++) {
+            int bit = (y - y0) * w + bounds[0] - x0;
+            for (int x = bounds[0], index = y * width + x; x <= bounds[2]; x++, index++, bit++) {
+                if (labels[index] == label) {
+                    words[bit >>> 6] |= 1L << bit;
+                    if (edm[index] < 1.5f) {
+                        perimeter++;
+                    }
+                }
+            }
+        }
+        return new BitMask(x0, y0, w, h, words, perimeter);
+    }
+
+    /**
+     * Returns the number of pixels that are foreground in exactly one of the
+     * two masks. Masks covering the same rectangle are compared a word at a
+     * time; otherwise only the pixels in both rectangles are visited.
+     */
+    public static int countDifference(BitMask a, BitMask b) {
+        if (a.x0 == b.x0 && a.y0 == b.y0 && a.width == b.width && a.height == b.height) {
+            int count = 0;
+            for (int i = 0; i < a.words.length; i++) {
+                count += Long.bitCount(a.words[i] ^ b.words[i]);
+            }
+            return count;
+        }
+        int overlap = 0;
+        int xMax = Math.min(a.x0 + a.width, b.x0 + b.width);
+        int yMax = Math.min(a.y0 + a.height, b.y0 + b.height);
+        for (int y = Math.max(a.y0, b.y0); y < yMax; y++) {
+            for (int x = Math.max(a.x0, b.x0); x < xMax; x++) {
+                if (a.get(x, y) && b.get(x, y)) {
+                    overlap++;
+                }
+            }
+        }
+        return a.getArea() + b.getArea() - 2 * overlap;
+    }
+
+    /**
+     * @return true if the pixel at (x, y) in frame coordinates is foreground;
+     * pixels outside the mask's rectangle are background
+     */
+    public boolean get(int x, int y) {
+        x -= x0;
+        y -= y0;
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return false;
+        }
+        int index = y * width + x;
+        return (words[index >>> 6] & (1L << index)) != 0L;
+    }
+
+    public int getArea() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    public int getPerimeter() {
+        return perimeter;
+    }
+
+    public int getX() {
+        return x0;
+    }
+
+    public int getY() {
+        return y0;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
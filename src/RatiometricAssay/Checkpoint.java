@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.IJ;
+import ij.ImageStack;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only record of the intermediate results of an analysis, kept in
+ * the results directory so that an interrupted run can be resumed. The file
+ * starts with a key describing the parameters and input; each record after
+ * that carries a CRC, so that a record left incomplete by a crash is
+ * discarded on reopening. Records are buffered and only reach the disk when
+ * {@link #flush()} is called, typically once per chunk of frames.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class Checkpoint implements Closeable {
+
+    public static final String FILENAME = "checkpoint.bin";
+    private static final int MAGIC = 0x52414350, VERSION = 1;
+    private static final byte FRAME = 1, MAXIMA = 2, VELOCITIES = 3;
+    private final File file;
+    private final List<Frame> frames = new ArrayList<>();
+    private float[] maxima;
+    private double[] velocities;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+    private DataOutputStream out;
+
+    private Checkpoint(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the checkpoint in the specified directory, reading any records
+     * left by an earlier run with the same key. A checkpoint with a
+     * different key is replaced.
+     */
+    public static Checkpoint open(String dir, String key) throws IOException {
+        Checkpoint checkpoint = new Checkpoint(new File(dir, FILENAME));
+        long valid = checkpoint.file.isFile() ? checkpoint.read(key) : -1L;
+        if (valid < 0L) {
+            checkpoint.frames.clear();
+            checkpoint.maxima = null;
+            checkpoint.velocities = null;
+            checkpoint.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(checkpoint.file)));
+            checkpoint.out.writeInt(MAGIC);
+            checkpoint.out.writeInt(VERSION);
+            checkpoint.out.writeUTF(key);
+            checkpoint.out.flush();
+        } else {
+            try (RandomAccessFile raf = new RandomAccessFile(checkpoint.file, "rw")) {
+                raf.setLength(valid);
+            }
+            checkpoint.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(checkpoint.file, true)));
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Returns true if the specified directory holds a checkpoint with the
+     * specified key, from which an analysis could be resumed.
+     */
+    public static boolean exists(File dir, String key) {
+        File file = new File(dir, FILENAME);
+        if (!file.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION && in.readUTF().equals(key);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a key identifying an analysis of the specified stacks, made
+     * from the parameters and a description of each input: the path, length
+     * and modification time of a mapped file, as used by {@link StageCache},
+     * or else a hash of every frame, so that an input changed in any frame
+     * does not resume from the results of the old one.
+     */
+    public static String makeKey(String parameters, ImageStack stack1, ImageStack stack2) {
+        return String.format("%s;%s;%s", parameters, describe(stack1), describe(stack2));
+    }
+
+    private static String describe(ImageStack stack) {
+        String description = StageCache.describeFile(stack);
+        return description != null ? description : StageCache.hashStack(stack, null);
+    }
+
+    /**
+     * Reads the header and every intact record.
+     *
+     * @return the length of the file up to the end of the last intact
+     * record, or -1 if the key does not match
+     */
+    private long read(String key) throws IOException {
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+                DataInputStream in = new DataInputStream(counter)) {
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(key)) {
+                    IJ.log(String.format("%s is from a different analysis - starting again.", file.getAbsolutePath()));
+                    return -1L;
+                }
+            } catch (EOFException e) {
+                return -1L;
+            }
+            long valid = counter.count;
+            byte[] payload = new byte[0];
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                    int length = in.readInt();
+                    if (length < 0 || length > file.length()) {
+                        break;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[length];
+                    }
+                    in.readFully(payload, 0, length);
+                    crc.reset();
+                    crc.update(type);
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != in.readInt()) {
+                        break;
+                    }
+                    parse(type, new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                } catch (EOFException e) {
+                    break;
+                }
+                valid = counter.count;
+            }
+            return valid;
+        }
+    }
+
+    private void parse(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case FRAME:
+                Frame frame = new Frame(in.readInt(), in.readFloat(), in.readInt(), in.readInt(), in.readDouble(), readDoubles(in));
+                if (frame.index == frames.size() + 1) {
+                    frames.add(frame);
+                }
+                break;
+            case MAXIMA:
+                maxima = new float[in.readInt()];
+                for (int i = 0; i < maxima.length; i++) {
+                    maxima[i] = in.readFloat();
+                }
+                break;
+            case VELOCITIES:
+                velocities = readDoubles(in);
+                break;
+            default:
+        }
+    }
+
+    private static double[] readDoubles(DataInputStream in) throws IOException {
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    /**
+     * Returns the number of consecutive frames, starting from the first,
+     * for which a frame record exists.
+     */
+    public int getCompletedFrames() {
+        return frames.size();
+    }
+
+    /**
+     * Returns the record of the specified frame, numbered from one.
+     */
+    public Frame getFrame(int index) {
+        return frames.get(index - 1);
+    }
+
+    /**
+     * Returns the distance map maxima recorded once segmentation of the
+     * whole stack was complete, or null if there are none.
+     */
+    public float[] getMaxima() {
+        return maxima;
+    }
+
+    /**
+     * Returns the recorded velocities, or null if there are none.
+     */
+    public double[] getVelocities() {
+        return velocities;
+    }
+
+    /**
+     * Appends the results of one frame.
+     *
+     * @param velocity the velocity of the preceding frame, which only
+     * becomes known once this frame's mask is available, or NaN
+     */
+    public void writeFrame(int index, float edmMax, BitMask mask, double velocity, double[] row) throws IOException {
+        recordOut.writeInt(index);
+        recordOut.writeFloat(edmMax);
+        recordOut.writeInt(mask.getArea());
+        recordOut.writeInt(mask.getPerimeter());
+        recordOut.writeDouble(velocity);
+        writeDoubles(row);
+        writeRecord(FRAME);
+    }
+
+    public void writeMaxima(float[] maxima) throws IOException {
+        recordOut.writeInt(maxima.length);
+        for (float m : maxima) {
+            recordOut.writeFloat(m);
+        }
+        writeRecord(MAXIMA);
+    }
+
+    public void writeVelocities(double[] velocities) throws IOException {
+        writeDoubles(velocities);
+        writeRecord(VELOCITIES);
+    }
+
+    private void writeDoubles(double[] values) throws IOException {
+        recordOut.writeInt(values.length);
+        for (double v : values) {
+            recordOut.writeDouble(v);
+        }
+    }
+
+    private void writeRecord(byte type) throws IOException {
+        recordOut.flush();
+        crc.reset();
+        crc.update(type);
+        crc.update(record.toByteArray());
+        out.writeByte(type);
+        out.writeInt(record.size());
+        record.writeTo(out);
+        out.writeInt((int) crc.getValue());
+        record.reset();
+    }
+
+    /**
+     * Writes buffered records to the file.
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Closes and removes the checkpoint once the analysis is complete.
+     */
+    public void delete() throws IOException {
+        close();
+        if (!file.delete()) {
+            throw new IOException(String.format("Failed to delete %s", file.getAbsolutePath()));
+        }
+    }
+
+    /**
+     * The results of one frame.
+     */
+    public static class Frame {
+
+        final int index;
+        final float edmMax;
+        final int area;
+        final int perimeter;
+        final double velocity;
+        final double[] row;
+
+        Frame(int index, float edmMax, int area, int perimeter, double velocity, double[] row) {
+            this.index = index;
+            this.edmMax = edmMax;
+            this.area = area;
+            this.perimeter = perimeter;
+            this.velocity = velocity;
+            this.row = row;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
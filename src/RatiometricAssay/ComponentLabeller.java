@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+/**
+ * Labels the 8-connected foreground (non-zero) components of a binary image
+ * in two passes with a union-find table. Labels are numbered from 1 in
+ * raster order of each component's first pixel; background is 0.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class ComponentLabeller {
+
+    private final int width;
+    private final int height;
+    private final int[] labels;
+    private final int count;
+    private final int[] areas;
+    private final int[] bounds;
+
+    private ComponentLabeller(int width, int height, int[] labels, int count, int[] areas, int[] bounds) {
+        this.width = width;
+        this.height = height;
+        this.labels = labels;
+        this.count = count;
+        this.areas = areas;
+        this.bounds = bounds;
+    }
+
+    /**
+     * @param minArea components with fewer pixels than this are discarded
+     */
+    public static ComponentLabeller label(ImageProcessor binary, int minArea) {
+        int width = binary.getWidth();
+        int height = binary.getHeight();
+        Object pixels = binary.getPixels();
+        int[] labels = new int[width * height];
+        int[] parent = new int[16];
+        int next = 1;
+        float[] row = new float[width];
+        for (int y = 0; y < height; y++) {
+            RatioKernel.getRow(pixels, y * width, width, row);
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                if (row[x] == 0.0f) {
+                    continue;
+                }
+                int label = 0;
+                if (x > 0) {
+                    label = merge(parent, label, labels[offset + x - 1]);
+                }
+                if (y > 0) {
+                    int above = offset - width + x;
+                    if (x > 0) {
+                        label = merge(parent, label, labels[above - 1]);
+                    }
+                    label = merge(parent, label, labels[above]);
+                    if (x < width - 1) {
+                        label = merge(parent, label, labels[above + 1]);
+                    }
+                }
+                if (label == 0) {
+                    if (next == parent.length) {
+                        parent = Arrays.copyOf(parent, 2 * next);
+                    }
+                    parent[next] = next;
+                    label = next++;
+                }
+                labels[offset + x] = label;
+            }
+        }
+        int[] areaByRoot = new int[next];
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] > 0) {
+                labels[i] = find(parent, labels[i]);
+                areaByRoot[labels[i]]++;
+            }
+        }
+        int[] compact = new int[next];
+        int count = 0;
+        for (int i = 0; i < labels.length; i++) {
+            int root = labels[i];
+            if (root > 0 && compact[root] == 0 && areaByRoot[root] >= minArea) {
+                compact[root] = ++count;
+            }
+        }
+        int[] areas = new int[count + 1];
+        int[] bounds = new int[4 * (count + 1)];
+        for (int c = 1; c <= count; c++) {
+            bounds[4 * c] = width;
+            bounds[4 * c + 1] = height;
+            bounds[4 * c + 2] = -1;
+            bounds[4 * c + 3] = -1;
+        }
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                int c = labels[i] > 0 ? compact[labels[i]] : 0;
+                labels[i] = c;
+                if (c > 0) {
+                    areas[c]++;
+                    int b = 4 * c;
+                    bounds[b] = Math.min(bounds[b], x);
+                    bounds[b + 1] = Math.min(bounds[b + 1], y);
+                    bounds[b + 2] = Math.max(bounds[b + 2], x);
+                    bounds[b + 3] = Math.max(bounds[b + 3], y);
+                }
+            }
+        }
+        return new ComponentLabeller(width, height, labels, count, areas, bounds);
+    }
+
+    private static int merge(int[] parent, int label, int neighbour) {
+        if (neighbour == 0) {
+            return label;
+        }
+        int root = find(parent, neighbour);
+        if (label == 0) {
+            return root;
+        }
+        int other = find(parent, label);
+        if (root < other) {
+            parent[other] = root;
+            return root;
+        }
+        parent[root] = other;
+        return other;
+    }
+
+    private static int find(int[] parent, int label) {
+        while (parent[label] != label) {
+            parent[label] = parent[parent[label]];
+            label = parent[label];
+        }
+        return label;
+    }
+
+    public int[] getLabels() {
+        return labels;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getArea(int label) {
+        return areas[label];
+    }
+
+    /**
+     * Returns the bounding box of a component as {minX, minY, maxX, maxY},
+     * inclusive.
+     */
+    public int[] getBounds(int label) {
+        return new int[]{bounds[4 * label], bounds[4 * label + 1], bounds[4 * label + 2], bounds[4 * label + 3]};
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
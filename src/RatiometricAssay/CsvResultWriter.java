@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import UtilClasses.GenVariables;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes results as comma-separated values in the same layout as
+ * {@code CSVFormat.EXCEL}, formatting each row into a single buffer rather
+ * than printing values one at a time.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class CsvResultWriter implements ResultWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String RECORD_SEPARATOR = "\r\n";
+
+    @Override
+    public void write(String dir, String name, String[] headings, double[][] rows, String missing) throws IOException {
+        File output = new File(String.format("%s%s%s.csv", dir, File.separator, name));
+        StringBuilder line = new StringBuilder();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), GenVariables.ISO), BUFFER_SIZE)) {
+            if (headings != null) {
+                writeHeadings(writer, line, headings);
+            }
+            for (double[] row : rows) {
+                writeRow(writer, line, row, missing);
+            }
+        }
+    }
+
+    /**
+     * Creates a CSV file to which rows are appended one at a time. Each row
+     * is flushed to disk as soon as it is appended, so that the file can be
+     * read while it is still being written.
+     */
+    public static Appender append(String dir, String name, String[] headings, String missing) throws IOException {
+        File output = new File(String.format("%s%s%s.csv", dir, File.separator, name));
+        return new Appender(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), GenVariables.ISO)), headings, missing);
+    }
+
+    private static void writeHeadings(Writer writer, StringBuilder line, String[] headings) throws IOException {
+        line.setLength(0);
+        for (int j = 0; j < headings.length; j++) {
+            if (j > 0) {
+                line.append(',');
+            }
+            appendQuoted(line, headings[j]);
+        }
+        writer.append(line).append(RECORD_SEPARATOR);
+    }
+
+    private static void writeRow(Writer writer, StringBuilder line, double[] row, String missing) throws IOException {
+        line.setLength(0);
+        for (int j = 0; j < row.length; j++) {
+            if (j > 0) {
+                line.append(',');
+            }
+            if (Double.isNaN(row[j])) {
+                appendQuoted(line, missing);
+            } else {
+                line.append(row[j]);
+            }
+        }
+        writer.append(line).append(RECORD_SEPARATOR);
+    }
+
+    private static void appendQuoted(StringBuilder line, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            line.append(value);
+        } else {
+            line.append('"').append(value.replace("\"", "\"\"")).append('"');
+        }
+    }
+
+    public static class Appender implements Closeable {
+
+        private final Writer writer;
+        private final StringBuilder line = new StringBuilder();
+        private final String missing;
+
+        private Appender(Writer writer, String[] headings, String missing) throws IOException {
+            this.writer = writer;
+            this.missing = missing;
+            if (headings != null) {
+                writeHeadings(writer, line, headings);
+                writer.flush();
+            }
+        }
+
+        public void append(double[] row) throws IOException {
+            writeRow(writer, line, row, missing);
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import java.util.Arrays;
+
+/**
+ * Per-distance statistics for one frame, accumulated in a single pass into
+ * primitive arrays. Storage is reused across frames by {@link #reset(int)},
+ * so no allocation takes place per frame once the largest distance range
+ * has been seen. The variance is accumulated from deviations from the first
+ * value in each bin, so that it keeps its precision when the values are
+ * large relative to their spread, as ratios near one usually are.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class DistanceBinAccumulator {
+
+    public enum Statistic {
+        MEAN, COUNT, VARIANCE, STD_DEV, MIN, MAX, MEDIAN
+    }
+
+    private int bins;
+    private long[] counts = new long[0];
+    private double[] sums = new double[0], mins = new double[0], maxs = new double[0];
+    private double[] shifts = new double[0], devSums = new double[0], devSqs = new double[0];
+    private final P2QuantileSketch quantiles;
+    private final int medianIndex;
+
+    public DistanceBinAccumulator() {
+        this(null);
+    }
+
+    /**
+     * @param probabilities quantiles to estimate for each bin, or null to
+     * disable quantile estimation; the median is always included if any
+     * quantiles are requested
+     */
+    public DistanceBinAccumulator(double[] probabilities) {
+        if (probabilities == null) {
+            this.quantiles = null;
+            this.medianIndex = -1;
+        } else {
+            int m = -1;
+            for (int k = 0; k < probabilities.length; k++) {
+                if (probabilities[k] == 0.5) {
+                    m = k;
+                }
+            }
+            double[] p = probabilities;
+            if (m < 0) {
+                p = Arrays.copyOf(probabilities, probabilities.length + 1);
+                m = probabilities.length;
+                p[m] = 0.5;
+            }
+            this.quantiles = new P2QuantileSketch(p);
+            this.medianIndex = m;
+        }
+    }
+
+    public void reset(int bins) {
+        if (counts.length < bins) {
+            counts = new long[bins];
+            sums = new double[bins];
+            shifts = new double[bins];
+            devSums = new double[bins];
+            devSqs = new double[bins];
+            mins = new double[bins];
+            maxs = new double[bins];
+        }
+        this.bins = bins;
+        Arrays.fill(counts, 0, bins, 0L);
+        Arrays.fill(sums, 0, bins, 0.0);
+        Arrays.fill(devSums, 0, bins, 0.0);
+        Arrays.fill(devSqs, 0, bins, 0.0);
+        Arrays.fill(mins, 0, bins, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxs, 0, bins, Double.NEGATIVE_INFINITY);
+        if (quantiles != null) {
+            quantiles.reset(bins);
+        }
+    }
+
+    public void add(int bin, double value) {
+        if (counts[bin]++ == 0L) {
+            shifts[bin] = value;
+        }
+        sums[bin] += value;
+        double dev = value - shifts[bin];
+        devSums[bin] += dev;
+        devSqs[bin] += dev * dev;
+        if (value < mins[bin]) {
+            mins[bin] = value;
+        }
+        if (value > maxs[bin]) {
+            maxs[bin] = value;
+        }
+        if (quantiles != null) {
+            quantiles.add(bin, value);
+        }
+    }
+
+    /**
+     * Adds the statistics of another accumulator with the same number of
+     * bins, such as one filled from a different part of the same frame.
+     * Counts, minima and maxima are exact; sums are added, so may differ in
+     * the last bits from adding every value to one accumulator. Variances
+     * are combined with Chan et al.'s pairwise formula.
+     *
+     * @throws IllegalStateException if quantile estimation is enabled, as
+     * the estimates cannot be combined
+     */
+    public void merge(DistanceBinAccumulator other) {
+        if (quantiles != null || other.quantiles != null) {
+            throw new IllegalStateException("Quantile estimates cannot be merged.");
+        }
+        if (other.bins != bins) {
+            throw new IllegalArgumentException(String.format("Cannot merge %d bins into %d.", other.bins, bins));
+        }
+        for (int d = 0; d < bins; d++) {
+            long nA = counts[d], nB = other.counts[d];
+            if (nB == 0L) {
+                continue;
+            }
+            if (nA == 0L) {
+                shifts[d] = other.shifts[d];
+                devSums[d] = other.devSums[d];
+                devSqs[d] = other.devSqs[d];
+            } else {
+                long n = nA + nB;
+                double m2 = getSquaredDeviations(d) + other.getSquaredDeviations(d);
+                double shift = other.shifts[d] - shifts[d];
+                double delta = shift + other.devSums[d] / nB - devSums[d] / nA;
+                m2 += delta * delta * ((double) nA * nB / n);
+                // Stored relative to this accumulator's shift
+                devSums[d] += other.devSums[d] + nB * shift;
+                devSqs[d] = m2 + devSums[d] * devSums[d] / n;
+            }
+            counts[d] = nA + nB;
+            sums[d] += other.sums[d];
+            mins[d] = Math.min(mins[d], other.mins[d]);
+            maxs[d] = Math.max(maxs[d], other.maxs[d]);
+        }
+    }
+
+    public int getBins() {
+        return bins;
+    }
+
+    public boolean hasQuantiles() {
+        return quantiles != null;
+    }
+
+    public long getCount(int bin) {
+        return counts[bin];
+    }
+
+    public double getSum(int bin) {
+        return sums[bin];
+    }
+
+    public double getMean(int bin) {
+        return counts[bin] > 0 ? sums[bin] / counts[bin] : 0.0;
+    }
+
+    public double getVariance(int bin) {
+        long n = counts[bin];
+        if (n < 2) {
+            return 0.0;
+        }
+        // Rounding can leave the deviations of identical values a few ulps
+        // below zero
+        return Math.max(0.0, getSquaredDeviations(bin) / (n - 1));
+    }
+
+    /**
+     * Returns the sum of the squared deviations from the mean.
+     */
+    private double getSquaredDeviations(int bin) {
+        return devSqs[bin] - devSums[bin] * devSums[bin] / counts[bin];
+    }
+
+    public double getMin(int bin) {
+        return counts[bin] > 0 ? mins[bin] : 0.0;
+    }
+
+    public double getMax(int bin) {
+        return counts[bin] > 0 ? maxs[bin] : 0.0;
+    }
+
+    /**
+     * @param k index into the probabilities given to the constructor
+     */
+    public double getQuantile(int bin, int k) {
+        return counts[bin] > 0 ? quantiles.getQuantile(bin, k) : 0.0;
+    }
+
+    public double getMedian(int bin) {
+        if (quantiles == null) {
+            throw new IllegalStateException("Quantile estimation is not enabled.");
+        }
+        return getQuantile(bin, medianIndex);
+    }
+
+    public double get(Statistic statistic, int bin) {
+        switch (statistic) {
+            case COUNT:
+                return getCount(bin);
+            case VARIANCE:
+                return getVariance(bin);
+            case STD_DEV:
+                return Math.sqrt(getVariance(bin));
+            case MIN:
+                return getMin(bin);
+            case MAX:
+                return getMax(bin);
+            case MEDIAN:
+                return getMedian(bin);
+            default:
+                return getMean(bin);
+        }
+    }
+
+    /**
+     * Writes the specified statistic for every bin into one row of the time
+     * &times; distance map. Entries of row beyond the last bin are left
+     * unchanged.
+     */
+    public void toRow(Statistic statistic, double[] row) {
+        if (row.length < bins) {
+            throw new IllegalArgumentException(String.format("A row of %d cannot hold %d bins.", row.length, bins));
+        }
+        for (int d = 0; d < bins; d++) {
+            row[d] = get(statistic, d);
+        }
+    }
+}
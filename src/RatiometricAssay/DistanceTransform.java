@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+
+/**
+ * Exact Euclidean distance transform of a binary image, computed in linear
+ * time by the separable algorithm of Felzenszwalb and Huttenlocher. Each
+ * foreground (non-zero) pixel is assigned its distance to the nearest
+ * background pixel; the image edges are not treated as background. A frame
+ * with no background has no edge to measure from, so all its distances,
+ * and its maximum, are zero rather than arbitrarily large. The
+ * column and row passes are split across the fork-join pool when called
+ * from one, and the maximum distance is tracked as the distances are
+ * computed. Large frames can instead be transformed in bands of rows, so
+ * that the working set of each band fits in cache.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class DistanceTransform {
+
+    private final int width;
+    private final int height;
+    private final float[] distances;
+    private final float max;
+
+    /**
+     * @param max the maximum distance, or infinity if there is no background
+     */
+    private DistanceTransform(int width, int height, float[] distances, float max) {
+        this.width = width;
+        this.height = height;
+        this.distances = distances;
+        this.max = Float.isInfinite(max) ? 0.0f : max;
+    }
+
+    public static DistanceTransform compute(ImageProcessor binary) {
+        int width = binary.getWidth();
+        int height = binary.getHeight();
+        float[] distances = new float[width * height];
+        float max = transform(binary.getPixels(), width, 0, height, 0, height, distances);
+        return new DistanceTransform(width, height, distances, max);
+    }
+
+    /**
+     * As {@link #compute(ImageProcessor)}, but the frame is processed in
+     * bands of tileRows rows, in parallel when called from the fork-join
+     * pool. Each band reads only the rows within halo rows above and below
+     * it. Background beyond the halo is further away than the halo, so a
+     * band whose maximum distance exceeds the halo is transformed again with
+     * twice the halo, as is a band with no background within its halo. The
+     * result is therefore identical to that of the whole-frame transform.
+     */
+    public static DistanceTransform compute(ImageProcessor binary, int tileRows, int halo) {
+        int width = binary.getWidth();
+        int height = binary.getHeight();
+        if (tileRows < 1 || tileRows >= height) {
+            return compute(binary);
+        }
+        Object pixels = binary.getPixels();
+        float[] distances = new float[width * height];
+        int tiles = (height + tileRows - 1) / tileRows;
+        float max = SpanSplitter.forEachSpan(tiles, 1, (firstTile, lastTile) -> {
+            float spanMax = 0.0f;
+            for (int t = firstTile; t < lastTile; t++) {
+                int first = t * tileRows;
+                int last = Math.min(height, first + tileRows);
+                for (int h = Math.max(1, halo);; h *= 2) {
+                    int top = Math.max(0, first - h);
+                    int bottom = Math.min(height, last + h);
+                    float tileMax = transform(pixels, width, top, bottom, first, last, distances);
+                    if ((top == 0 || tileMax <= first - top + 1) && (bottom == height || tileMax <= bottom - last + 1)) {
+                        spanMax = Math.max(spanMax, tileMax);
+                        break;
+                    }
+                }
+            }
+            return spanMax;
+        });
+        return new DistanceTransform(width, height, distances, max);
+    }
+
+    /**
+     * Transforms rows [first, last) into dest, using only rows [top, bottom)
+     * of the binary image.
+     *
+     * @return the maximum distance in the transformed rows, or infinity if
+     * rows [top, bottom) hold no background, in which case the transformed
+     * rows are set to zero
+     */
+    private static float transform(Object pixels, int width, int top, int bottom, int first, int last, float[] dest) {
+        int rows = bottom - top;
+        int[] columnDist = new int[width * rows];
+        // Any real vertical distance is less than this, so pixels with no
+        // background in their column behave as if infinitely far from it
+        int far = width + rows;
+        float background = SpanSplitter.forEachSpan(width, (firstColumn, lastColumn) -> {
+            float[] row = new float[lastColumn - firstColumn];
+            float found = 0.0f;
+            for (int y = 0; y < rows; y++) {
+                RatioKernel.getRow(pixels, (top + y) * width + firstColumn, lastColumn - firstColumn, row);
+                int offset = y * width;
+                for (int x = firstColumn; x < lastColumn; x++) {
+                    if (row[x - firstColumn] == 0.0f) {
+                        columnDist[offset + x] = 0;
+                        found = 1.0f;
+                    } else {
+                        columnDist[offset + x] = y > 0 ? Math.min(far, columnDist[offset - width + x] + 1) : far;
+                    }
+                }
+            }
+            for (int y = rows - 2; y >= 0; y--) {
+                int offset = y * width;
+                for (int x = firstColumn; x < lastColumn; x++) {
+                    columnDist[offset + x] = Math.min(columnDist[offset + x], columnDist[offset + width + x] + 1);
+                }
+            }
+            return found;
+        });
+        if (background == 0.0f) {
+            Arrays.fill(dest, first * width, last * width, 0.0f);
+            return Float.POSITIVE_INFINITY;
+        }
+        return SpanSplitter.forEachSpan(last - first, (firstRow, lastRow) -> {
+            double[] f = new double[width];
+            int[] v = new int[width];
+            double[] z = new double[width + 1];
+            float spanMax = 0.0f;
+            for (int y = first + firstRow; y < first + lastRow; y++) {
+                int offset = (y - top) * width;
+                for (int x = 0; x < width; x++) {
+                    double g = columnDist[offset + x];
+                    f[x] = g * g;
+                }
+                spanMax = Math.max(spanMax, transformRow(f, v, z, width, dest, y * width));
+            }
+            return spanMax;
+        });
+    }
+
+    /**
+     * One-dimensional squared distance transform of a sampled function by
+     * the lower envelope of parabolas rooted at each sample.
+     */
+    private static float transformRow(double[] f, int[] v, double[] z, int n, float[] dest, int offset) {
+        int k = 0;
+        v[0] = 0;
+        z[0] = Double.NEGATIVE_INFINITY;
+        z[1] = Double.POSITIVE_INFINITY;
+        for (int q = 1; q < n; q++) {
+            double s = ((f[q] + (double) q * q) - (f[v[k]] + (double) v[k] * v[k])) / (2.0 * (q - v[k]));
+            while (s <= z[k]) {
+                k--;
+                s = ((f[q] + (double) q * q) - (f[v[k]] + (double) v[k] * v[k])) / (2.0 * (q - v[k]));
+            }
+            k++;
+            v[k] = q;
+            z[k] = s;
+            z[k + 1] = Double.POSITIVE_INFINITY;
+        }
+        k = 0;
+        float max = 0.0f;
+        for (int q = 0; q < n; q++) {
+            while (z[k + 1] < q) {
+                k++;
+            }
+            double dq = q - v[k];
+            float d = (float) Math.sqrt(dq * dq + f[v[k]]);
+            dest[offset + q] = d;
+            max = Math.max(max, d);
+        }
+        return max;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public float[] getDistances() {
+        return distances;
+    }
+
+    public FloatProcessor toFloatProcessor() {
+        return new FloatProcessor(width, height, distances);
+    }
+
+    /**
+     * Returns the distances rounded to the nearest integer and clamped to the
+     * 16-bit range.
+     */
+    public ShortProcessor toShortProcessor() {
+        short[] pixels = new short[distances.length];
+        for (int i = 0; i < distances.length; i++) {
+            pixels[i] = (short) Math.min(65535, Math.round(distances[i]));
+        }
+        return new ShortProcessor(width, height, pixels, null);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs independent per-frame tasks either serially or on a fork-join pool.
+ * Each frame is processed by exactly one call to the task, so results do not
+ * depend on the level of parallelism.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class FrameExecutor {
+
+    public interface FrameTask {
+
+        void process(int frame) throws Exception;
+    }
+
+    private final int parallelism;
+    private final ForkJoinPool pool;
+    private final boolean shared;
+    private AnalysisMonitor monitor;
+
+    public FrameExecutor(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.pool = this.parallelism > 1 ? new ForkJoinPool(this.parallelism) : null;
+        this.shared = false;
+    }
+
+    /**
+     * Schedules frames on an existing pool, which is not shut down by
+     * {@link #shutdown()}.
+     */
+    public FrameExecutor(ForkJoinPool pool) {
+        this.parallelism = pool.getParallelism();
+        this.pool = pool;
+        this.shared = true;
+    }
+
+    /**
+     * Cancellation is checked before, and progress reported after, every
+     * frame.
+     */
+    public void setMonitor(AnalysisMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Calls task.process(i) for every i in [first, last].
+     *
+     * @throws RuntimeException wrapping the first exception thrown by a task
+     */
+    public void run(int first, int last, FrameTask task) {
+        if (last < first) {
+            return;
+        }
+        if (pool == null) {
+            for (int i = first; i <= last; i++) {
+                runFrame(task, i, monitor);
+            }
+        } else if (ForkJoinTask.getPool() == pool) {
+            new FrameRange(task, first, last, monitor).invoke();
+        } else {
+            pool.invoke(new FrameRange(task, first, last, monitor));
+        }
+    }
+
+    public void shutdown() {
+        if (pool != null && !shared) {
+            pool.shutdown();
+        }
+    }
+
+    private static void runFrame(FrameTask task, int frame, AnalysisMonitor monitor) {
+        if (monitor != null) {
+            monitor.checkCancelled();
+        }
+        try {
+            task.process(frame);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        if (monitor != null) {
+            monitor.frameDone();
+        }
+    }
+
+    private static class FrameRange extends RecursiveAction {
+
+        private final FrameTask task;
+        private final int first, last;
+        private final AnalysisMonitor monitor;
+
+        FrameRange(FrameTask task, int first, int last, AnalysisMonitor monitor) {
+            this.task = task;
+            this.first = first;
+            this.last = last;
+            this.monitor = monitor;
+        }
+
+        @Override
+        protected void compute() {
+            if (first == last) {
+                runFrame(task, first, monitor);
+            } else {
+                int mid = (first + last) >>> 1;
+                invokeAll(new FrameRange(task, first, mid, monitor), new FrameRange(task, mid + 1, last, monitor));
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.IJ;
+import ij.ImagePlus;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Analyses multi-channel hyperstacks, one per stage position, without
+ * splitting them into pairs of stacks first. For every position and Z
+ * slice, the time series of the two selected channels are analysed exactly
+ * as a pair of stacks would be, with results in a directory of their own.
+ * All analyses are scheduled on one shared pool, so that frames of different
+ * positions and slices keep every thread busy, and {@value #SUMMARY}
+ * summarises all of them.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class HyperstackAnalysis {
+
+    public static final String SUMMARY = "Summary", CHANNEL_1 = "channel1", CHANNEL_2 = "channel2";
+    private static final String USAGE = "Usage: HyperstackAnalysis <parameters.properties> <output directory> <hyperstack>...";
+    private final Supplier<RatiometricAnalyser> analysers;
+    private int channel1 = 1, channel2 = 2;
+
+    /**
+     * @param analysers supplies a separately configured analyser for each
+     * position and slice, as analysers cannot be shared between concurrent
+     * analyses
+     */
+    public HyperstackAnalysis(Supplier<RatiometricAnalyser> analysers) {
+        this.analysers = analysers;
+    }
+
+    /**
+     * Sets the channels, numbered from one, whose ratio is computed; channel1
+     * plays the part of stack 1 and is also the channel that is segmented.
+     */
+    public void setChannels(int channel1, int channel2) {
+        if (channel1 < 1 || channel2 < 1 || channel1 == channel2) {
+            throw new IllegalArgumentException("Channels must be two different channels, numbered from one.");
+        }
+        this.channel1 = channel1;
+        this.channel2 = channel2;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 3) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            Properties params = BatchRunner.loadParameters(new File(args[0]));
+            BatchRunner runner = new BatchRunner(params);
+            HyperstackAnalysis analysis = new HyperstackAnalysis(runner::createAnalyser);
+            analysis.setChannels(Integer.parseInt(params.getProperty(CHANNEL_1, "1")),
+                    Integer.parseInt(params.getProperty(CHANNEL_2, "2")));
+            ArrayList<ImagePlus> positions = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                positions.add(open(new File(args[i])));
+            }
+            ForkJoinPool pool = new ForkJoinPool(runner.getParallelism());
+            int failures;
+            try {
+                failures = analysis.analyse(positions, new File(args[1]), pool);
+            } finally {
+                pool.shutdown();
+            }
+            System.exit(failures > 0 ? 1 : 0);
+        } catch (IOException | RuntimeException e) {
+            System.err.println(e.toString());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Opens a hyperstack, mapping it if it is an uncompressed TIFF, in which
+     * case its dimensions are read from the ImageJ description.
+     */
+    public static ImagePlus open(File file) throws IOException {
+        try {
+            MappedTiffStack stack = MappedTiffStack.open(file);
+            ImagePlus imp = new ImagePlus(file.getName(), stack);
+            String description = stack.getDescription();
+            int channels = getDimension(description, "channels");
+            int slices = getDimension(description, "slices");
+            int frames = getDimension(description, "frames");
+            if (channels * slices * frames == stack.size()) {
+                imp.setDimensions(channels, slices, frames);
+                return imp;
+            }
+        } catch (IOException e) {
+            // Not mappable, so read it with ImageJ
+        }
+        ImagePlus imp = IJ.openImage(file.getAbsolutePath());
+        if (imp == null) {
+            throw new IOException(String.format("Cannot open %s", file.getAbsolutePath()));
+        }
+        return imp;
+    }
+
+    private static int getDimension(String description, String name) {
+        if (description == null) {
+            return 1;
+        }
+        Matcher m = Pattern.compile(String.format("(?m)^%s=(\\d+)$", name)).matcher(description);
+        return m.find() ? Integer.parseInt(m.group(1)) : 1;
+    }
+
+    /**
+     * Analyses every Z slice of every position on the specified pool. The
+     * results for position p are written to Position_p in resultsDir, in
+     * Z_z subdirectories if there is more than one slice.
+     *
+     * @return the number of analyses that failed
+     */
+    public int analyse(List<ImagePlus> positions, File resultsDir, ForkJoinPool pool) throws IOException {
+        ArrayList<Unit> units = new ArrayList<>();
+        for (int p = 1; p <= positions.size(); p++) {
+            ImagePlus imp = positions.get(p - 1);
+            if (Math.max(channel1, channel2) > imp.getNChannels()) {
+                throw new IOException(String.format("%s has only %d channels.", imp.getTitle(), imp.getNChannels()));
+            }
+            File positionDir = new File(resultsDir, String.format("Position_%03d", p));
+            for (int z = 1; z <= imp.getNSlices(); z++) {
+                File dir = imp.getNSlices() > 1 ? new File(positionDir, String.format("Z_%03d", z)) : positionDir;
+                units.add(new Unit(p, z, HyperstackView.of(imp, channel1, z), HyperstackView.of(imp, channel2, z), dir));
+            }
+        }
+        double[][] summary = new double[units.size()][];
+        AtomicInteger failures = new AtomicInteger();
+        ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int u = 0; u < units.size(); u++) {
+            final int index = u;
+            tasks.add(pool.submit(() -> {
+                Unit unit = units.get(index);
+                double seconds = Double.NaN;
+                try {
+                    seconds = unit.run(pool);
+                    IJ.log(String.format("%s done.", unit));
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    IJ.log(String.format("%s failed: %s", unit, e.toString()));
+                }
+                summary[index] = new double[]{unit.position, unit.slice, unit.stack1.size(), seconds};
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        if (!(resultsDir.isDirectory() || resultsDir.mkdirs())) {
+            throw new IOException(String.format("Cannot create %s", resultsDir.getAbsolutePath()));
+        }
+        analysers.get().getResultWriter().write(resultsDir.getAbsolutePath(), SUMMARY,
+                new String[]{"Position", "Z", "Frames", "Analysis Time (s)"}, summary, "NaN");
+        IJ.log(String.format("Hyperstack analysis complete: %d of %d analyses failed.", failures.get(), units.size()));
+        return failures.get();
+    }
+
+    /**
+     * One position and Z slice.
+     */
+    private class Unit {
+
+        final int position, slice;
+        final HyperstackView stack1, stack2;
+        final File dir;
+
+        Unit(int position, int slice, HyperstackView stack1, HyperstackView stack2, File dir) {
+            this.position = position;
+            this.slice = slice;
+            this.stack1 = stack1;
+            this.stack2 = stack2;
+            this.dir = dir;
+        }
+
+        /**
+         * @return the wall time of the analysis in seconds
+         */
+        double run(ForkJoinPool pool) throws IOException {
+            if (!(dir.isDirectory() || dir.mkdirs())) {
+                throw new IOException(String.format("Cannot create %s", dir.getAbsolutePath()));
+            }
+            RatiometricAnalyser ra = analysers.get();
+            ra.setPool(pool);
+            ra.analyse(stack1, stack2, dir.getAbsolutePath(), false);
+            for (AnalysisMetrics.Stage stage : ra.getMetrics().getStages()) {
+                if (stage.getName().equals("Total")) {
+                    return stage.getWallSeconds();
+                }
+            }
+            return Double.NaN;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Position %d, Z %d", position, slice);
+        }
+    }
+}
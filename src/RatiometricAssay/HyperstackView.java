@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+ * A read-only time series of one channel and Z slice of a hyperstack. Planes
+ * are fetched from the underlying stack on demand, so no pixel data is
+ * copied, and mapped planes stay mapped.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class HyperstackView extends VirtualStack {
+
+    private final ImageStack stack;
+    private final int[] indices;
+    private final String name;
+
+    private HyperstackView(ImageStack stack, int[] indices, String name) {
+        super(stack.getWidth(), stack.getHeight(), null, null);
+        this.stack = stack;
+        this.indices = indices;
+        this.name = name;
+    }
+
+    /**
+     * Returns every frame of the specified channel and slice, both numbered
+     * from one.
+     */
+    public static HyperstackView of(ImagePlus imp, int channel, int slice) {
+        int[] indices = new int[imp.getNFrames()];
+        for (int t = 1; t <= indices.length; t++) {
+            indices[t - 1] = imp.getStackIndex(channel, slice, t);
+        }
+        return new HyperstackView(imp.getImageStack(), indices, String.format("%s-C%d-Z%d", imp.getTitle(), channel, slice));
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        return stack.getProcessor(indices[n - 1]);
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return stack.getPixels(indices[n - 1]);
+    }
+
+    /**
+     * Returns pixel data for plane n in the form given by
+     * {@link MappedTiffStack#getPixelData(ImageStack, int)} for the
+     * underlying stack.
+     */
+    Object getPixelData(int n) {
+        return MappedTiffStack.getPixelData(stack, indices[n - 1]);
+    }
+
+    @Override
+    public void setPixels(Object pixels, int n) {
+        throw new UnsupportedOperationException("Hyperstack views are read-only.");
+    }
+
+    @Override
+    public void deleteSlice(int n) {
+        throw new UnsupportedOperationException("Hyperstack views are read-only.");
+    }
+
+    @Override
+    public int getSize() {
+        return indices.length;
+    }
+
+    @Override
+    public int getWidth() {
+        return stack.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return stack.getHeight();
+    }
+
+    @Override
+    public int getBitDepth() {
+        return stack.getBitDepth();
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return String.format("%s-T%d", name, n);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.process.ImageProcessor;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Analyses frames one batch at a time as they are acquired. Ratio and, if
+ * saved, EDM frames are saved as image sequences, and a row is appended to
+ * Map.csv, ProfilePoints.csv and Velocities.csv as soon as each can be
+ * computed. Frames are numbered in the order they are added, so they must
+ * be added in order of acquisition.
+ *
+ * The live tables are provisional. Until {@link #finish()} is called, each
+ * map row is smoothed along the distance axis only, as later frames are
+ * not yet known, and profile points are found using the extrema of the
+ * rows seen so far, so earlier rows may use a narrower range than later
+ * ones. Finishing rewrites all three tables exactly as
+ * {@link RatiometricAnalyser#analyseStreaming} would, with the map smoothed
+ * in time as well and the extrema taken over the whole map.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class LiveAnalysis implements Closeable {
+
+    private final RatiometricAnalyser ra;
+    private final String resultsDir;
+    private final File ratioDir, edmDir;
+    private final FrameExecutor executor;
+    private final RecursiveGaussian rowSmoother;
+    private final CsvResultWriter.Appender map, profilePoints, velocities;
+    private final ArrayList<double[]> data = new ArrayList<>();
+    private final ArrayList<Double> vels = new ArrayList<>();
+    private final BitMask[] masks = new BitMask[3];
+    private double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+    private int maxDist;
+    private int frames;
+    private boolean closed;
+
+    public LiveAnalysis(RatiometricAnalyser ra, String resultsDir) throws IOException {
+        this.ra = ra;
+        this.resultsDir = resultsDir;
+        this.ratioDir = new File(resultsDir, "output");
+        this.edmDir = ra.isSaveEDM() ? new File(resultsDir, "EDM") : null;
+        if (!(ratioDir.isDirectory() || ratioDir.mkdirs()) || (edmDir != null && !(edmDir.isDirectory() || edmDir.mkdirs()))) {
+            throw new IOException("Failed to create output directories.");
+        }
+        this.rowSmoother = new RecursiveGaussian(ra.getSigBlurRadius());
+        this.executor = ra.createExecutor();
+        this.map = CsvResultWriter.append(resultsDir, "Map", null, "NaN");
+        this.profilePoints = CsvResultWriter.append(resultsDir, "ProfilePoints", ra.getProfilePointHeadings(), "not found");
+        this.velocities = CsvResultWriter.append(resultsDir, "Velocities", ra.getVelocityHeadings(), "NaN");
+    }
+
+    /**
+     * Processes a batch of consecutive frames in parallel and appends their
+     * results in order.
+     */
+    public void addFrames(ImageProcessor[] channel1, ImageProcessor[] channel2) throws IOException {
+        int n = channel1.length;
+        final RatiometricAnalyser.FrameResult[] results = new RatiometricAnalyser.FrameResult[n];
+        long start = System.nanoTime();
+        executor.run(1, n, i -> {
+            results[i - 1] = ra.processFrame(channel1[i - 1], channel2[i - 1].getPixels());
+        });
+        ra.recordFrameWall(start);
+        for (RatiometricAnalyser.FrameResult result : results) {
+            addResult(result);
+        }
+    }
+
+    private void addResult(RatiometricAnalyser.FrameResult result) throws IOException {
+        frames++;
+        ra.saveRatioFrame(result.ratio, ratioDir, frames);
+        if (edmDir != null) {
+            ra.saveFrame(result.edm, edmDir, "EDM", frames);
+        }
+        double[] profile = result.distanceProfile;
+        data.add(profile);
+        maxDist = Math.max(maxDist, profile.length - 1);
+        double[] smoothed = rowSmoother.blur(new double[][]{profile})[0];
+        for (double v : smoothed) {
+            if (!Double.isNaN(v)) {
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+        }
+        map.append(smoothed);
+        profilePoints.append(ra.findProfilePoints(smoothed, frames - 1, min, max));
+        masks[0] = masks[1];
+        masks[1] = masks[2];
+        masks[2] = result.mask;
+        if (frames >= 3) {
+            double vel = ra.calcVelocity(masks[0], masks[2], masks[1].getPerimeter());
+            vels.add(vel);
+            velocities.append(new double[]{(frames - 2) * ra.getTimeRes(), vel});
+        }
+    }
+
+    public int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Returns the number of frames that can be processed in parallel.
+     */
+    public int getBatchSize() {
+        return executor.getParallelism();
+    }
+
+    public AnalysisMetrics getMetrics() {
+        return ra.getMetrics();
+    }
+
+    /**
+     * Closes the live tables and replaces them with the final ones: the
+     * whole map smoothed in time as well as distance, profile points found
+     * with the extrema of the whole smoothed map, and velocities, in the
+     * analyser's output format.
+     */
+    public void finish() throws IOException {
+        close();
+        if (frames < 1) {
+            return;
+        }
+        double[] v = new double[frames];
+        for (int i = 0; i < vels.size(); i++) {
+            v[i + 1] = vels.get(i);
+        }
+        if (frames >= 2) {
+            ra.plotVelocities(ra.summariseVelocities(v), resultsDir, false);
+        }
+        double[][] rows = new double[frames][];
+        for (int i = 0; i < frames; i++) {
+            rows[i] = Arrays.copyOf(data.get(i), maxDist + 1);
+        }
+        ra.saveMap(rows, resultsDir);
+        ra.getMetrics().write(new File(resultsDir, AnalysisMetrics.FILENAME));
+    }
+
+    /**
+     * Closes the live tables and stops the worker threads. Closing again, as
+     * after {@link #finish()}, has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            map.close();
+            profilePoints.close();
+            velocities.close();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
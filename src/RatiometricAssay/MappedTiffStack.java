@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A read-only virtual stack backed by a memory-mapped, uncompressed,
+ * single-channel TIFF or BigTIFF file. The IFDs are parsed once on opening
+ * and each plane is mapped directly from the file, so no pixel data is
+ * decoded up front and the OS page cache is shared between processes
+ * reading the same file.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class MappedTiffStack extends VirtualStack {
+
+    private static final int NEW_SUBFILE_TYPE = 254, IMAGE_WIDTH = 256, IMAGE_LENGTH = 257,
+            BITS_PER_SAMPLE = 258, COMPRESSION = 259, IMAGE_DESCRIPTION = 270, STRIP_OFFSETS = 273,
+            SAMPLES_PER_PIXEL = 277, STRIP_BYTE_COUNTS = 279, TILE_WIDTH = 322, SAMPLE_FORMAT = 339;
+    private static final int SAMPLE_FORMAT_INT = 2, SAMPLE_FORMAT_FLOAT = 3;
+
+    private final int width, height, bitDepth;
+    private final ByteBuffer[] planes;
+    private final File file;
+    private final String description;
+
+    private MappedTiffStack(int width, int height, int bitDepth, ByteBuffer[] planes, File file, String description) {
+        super(width, height, null, null);
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.planes = planes;
+        this.file = file;
+        this.description = description;
+    }
+
+    /**
+     * Maps the specified file.
+     *
+     * @throws IOException if the file is not an uncompressed, single-channel
+     * 8-, 16- or 32-bit TIFF with contiguous strips
+     */
+    public static MappedTiffStack open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, 16, ByteOrder.BIG_ENDIAN);
+            ByteOrder order;
+            if (header.getShort(0) == 0x4949) {
+                order = ByteOrder.LITTLE_ENDIAN;
+            } else if (header.getShort(0) == 0x4D4D) {
+                order = ByteOrder.BIG_ENDIAN;
+            } else {
+                throw new IOException(String.format("%s is not a TIFF file.", file.getName()));
+            }
+            header.order(order);
+            int version = header.getShort(2);
+            boolean big;
+            long ifd;
+            if (version == 42) {
+                big = false;
+                ifd = header.getInt(4) & 0xFFFFFFFFL;
+            } else if (version == 43) {
+                big = true;
+                ifd = header.getLong(8);
+            } else {
+                throw new IOException(String.format("%s is not a TIFF file.", file.getName()));
+            }
+            ArrayList<long[]> regions = new ArrayList<>();
+            int width = -1, height = -1, bitDepth = -1;
+            String description = null;
+            while (ifd != 0) {
+                Ifd entries = Ifd.parse(channel, ifd, big, order);
+                if ((entries.get(NEW_SUBFILE_TYPE, 0) & 1) != 0) {
+                    ifd = entries.next;
+                    continue; // Skip thumbnails and reduced-resolution images
+                }
+                int w = (int) entries.get(IMAGE_WIDTH, -1);
+                int h = (int) entries.get(IMAGE_LENGTH, -1);
+                int bits = (int) entries.get(BITS_PER_SAMPLE, 1);
+                long format = entries.get(SAMPLE_FORMAT, 1);
+                if (entries.get(COMPRESSION, 1) != 1) {
+                    throw new IOException("Only uncompressed TIFF files can be mapped.");
+                }
+                if (entries.get(SAMPLES_PER_PIXEL, 1) != 1 || entries.has(TILE_WIDTH)) {
+                    throw new IOException("Only single-channel, stripped TIFF files can be mapped.");
+                }
+                if (!(bits == 8 || bits == 16 || bits == 32) || format == SAMPLE_FORMAT_INT
+                        || (bits == 32) != (format == SAMPLE_FORMAT_FLOAT)) {
+                    throw new IOException("Only unsigned 8-, 16- and 32-bit float TIFF files can be mapped.");
+                }
+                if (width < 0) {
+                    width = w;
+                    height = h;
+                    bitDepth = bits;
+                    description = entries.getString(channel, IMAGE_DESCRIPTION);
+                } else if (w != width || h != height || bits != bitDepth) {
+                    throw new IOException("All planes must have the same dimensions and bit depth.");
+                }
+                long[] offsets = entries.getArray(channel, STRIP_OFFSETS);
+                long[] counts = entries.getArray(channel, STRIP_BYTE_COUNTS);
+                long planeBytes = (long) w * h * (bits / 8);
+                for (int s = 1; s < offsets.length; s++) {
+                    if (offsets[s] != offsets[s - 1] + counts[s - 1]) {
+                        throw new IOException("Only TIFF files with contiguous strips can be mapped.");
+                    }
+                }
+                regions.add(new long[]{offsets[0], planeBytes});
+                ifd = entries.next;
+            }
+            if (regions.isEmpty()) {
+                throw new IOException(String.format("%s contains no images.", file.getName()));
+            }
+            addImageJPlanes(regions, description, channel.size());
+            ByteBuffer[] planes = new ByteBuffer[regions.size()];
+            for (int p = 0; p < planes.length; p++) {
+                long[] region = regions.get(p);
+                planes[p] = channel.map(FileChannel.MapMode.READ_ONLY, region[0], region[1]).order(order);
+            }
+            return new MappedTiffStack(width, height, bitDepth, planes, file, description);
+        }
+    }
+
+    /**
+     * Maps the specified file if possible, otherwise reads it with ImageJ.
+     */
+    public static ImageStack openStack(File file) throws IOException {
+        try {
+            return open(file);
+        } catch (IOException e) {
+            ImagePlus imp = IJ.openImage(file.getAbsolutePath());
+            if (imp == null) {
+                throw new IOException(String.format("Cannot open %s", file.getAbsolutePath()));
+            }
+            return imp.getImageStack();
+        }
+    }
+
+    /**
+     * ImageJ writes stacks larger than 4 GB with a single IFD, recording the
+     * number of images in the description and storing planes contiguously.
+     */
+    private static void addImageJPlanes(ArrayList<long[]> regions, String description, long fileSize) {
+        if (regions.size() != 1 || description == null || !description.startsWith("ImageJ")) {
+            return;
+        }
+        Matcher m = Pattern.compile("images=(\\d+)").matcher(description);
+        if (!m.find()) {
+            return;
+        }
+        int images = Integer.parseInt(m.group(1));
+        long[] first = regions.get(0);
+        for (int p = 1; p < images; p++) {
+            long offset = first[0] + p * first[1];
+            if (offset + first[1] > fileSize) {
+                break;
+            }
+            regions.add(new long[]{offset, first[1]});
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length, ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of TIFF file.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns a typed, zero-copy view of the specified plane: a
+     * {@link ByteBuffer}, {@link ShortBuffer} or
+     * {@link FloatBuffer} for 8-, 16- and 32-bit data respectively.
+     *
+     * @param n 1-based plane index
+     */
+    public Buffer getPlane(int n) {
+        ByteBuffer plane = planes[n - 1].duplicate().order(planes[n - 1].order());
+        switch (bitDepth) {
+            case 16:
+                return plane.asShortBuffer();
+            case 32:
+                return plane.asFloatBuffer();
+            default:
+                return plane;
+        }
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        Buffer plane = getPlane(n);
+        switch (bitDepth) {
+            case 16: {
+                short[] pixels = new short[width * height];
+                ((ShortBuffer) plane).get(pixels);
+                return new ShortProcessor(width, height, pixels, null);
+            }
+            case 32: {
+                float[] pixels = new float[width * height];
+                ((FloatBuffer) plane).get(pixels);
+                return new FloatProcessor(width, height, pixels, null);
+            }
+            default: {
+                byte[] pixels = new byte[width * height];
+                ((ByteBuffer) plane).get(pixels);
+                return new ByteProcessor(width, height, pixels, null);
+            }
+        }
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public void setPixels(Object pixels, int n) {
+        throw new UnsupportedOperationException("Mapped stacks are read-only.");
+    }
+
+    @Override
+    public void deleteSlice(int n) {
+        throw new UnsupportedOperationException("Mapped stacks are read-only.");
+    }
+
+    @Override
+    public int getSize() {
+        return planes.length;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * Returns the image description of the first plane, or null if there is
+     * none.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Returns the mapped file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return String.format("%s-%d", file.getName(), n);
+    }
+
+    /**
+     * Returns pixel data for plane n suitable for {@link RatioKernel}: a
+     * mapped buffer view if the stack is, or is a view of, a
+     * MappedTiffStack, otherwise the plane's pixel array.
+     */
+    public static Object getPixelData(ImageStack stack, int n) {
+        if (stack instanceof MappedTiffStack) {
+            return ((MappedTiffStack) stack).getPlane(n);
+        } else if (stack instanceof HyperstackView) {
+            return ((HyperstackView) stack).getPixelData(n);
+        }
+        return stack.getPixels(n);
+    }
+
+    private static class Ifd {
+
+        private final ByteBuffer entries;
+        private final int count, entrySize;
+        private final boolean big;
+        private final ByteOrder order;
+        final long next;
+
+        private Ifd(ByteBuffer entries, int count, boolean big, ByteOrder order, long next) {
+            this.entries = entries;
+            this.count = count;
+            this.entrySize = big ? 20 : 12;
+            this.big = big;
+            this.order = order;
+            this.next = next;
+        }
+
+        static Ifd parse(FileChannel channel, long offset, boolean big, ByteOrder order) throws IOException {
+            int countSize = big ? 8 : 2;
+            ByteBuffer countBuffer = read(channel, offset, countSize, order);
+            long count = big ? countBuffer.getLong(0) : countBuffer.getShort(0) & 0xFFFF;
+            if (count <= 0 || count > 4096) {
+                throw new IOException("Corrupt TIFF directory.");
+            }
+            int entrySize = big ? 20 : 12;
+            ByteBuffer entries = read(channel, offset + countSize, (int) count * entrySize + (big ? 8 : 4), order);
+            int end = (int) count * entrySize;
+            long next = big ? entries.getLong(end) : entries.getInt(end) & 0xFFFFFFFFL;
+            return new Ifd(entries, (int) count, big, order, next);
+        }
+
+        private int find(int tag) {
+            for (int e = 0; e < count; e++) {
+                if ((entries.getShort(e * entrySize) & 0xFFFF) == tag) {
+                    return e * entrySize;
+                }
+            }
+            return -1;
+        }
+
+        boolean has(int tag) {
+            return find(tag) >= 0;
+        }
+
+        long get(int tag, long defaultValue) {
+            int e = find(tag);
+            if (e < 0) {
+                return defaultValue;
+            }
+            return readValue(entries, e + (big ? 12 : 8), entries.getShort(e + 2));
+        }
+
+        long[] getArray(FileChannel channel, int tag) throws IOException {
+            int e = find(tag);
+            if (e < 0) {
+                throw new IOException(String.format("Required TIFF tag %d is missing.", tag));
+            }
+            int type = entries.getShort(e + 2);
+            int size = typeSize(type);
+            long n = big ? entries.getLong(e + 4) : entries.getInt(e + 4) & 0xFFFFFFFFL;
+            ByteBuffer values = valueBuffer(channel, e, n * size);
+            long[] result = new long[(int) n];
+            for (int i = 0; i < n; i++) {
+                result[i] = readValue(values, values.position() + i * size, type);
+            }
+            return result;
+        }
+
+        String getString(FileChannel channel, int tag) throws IOException {
+            int e = find(tag);
+            if (e < 0) {
+                return null;
+            }
+            long n = big ? entries.getLong(e + 4) : entries.getInt(e + 4) & 0xFFFFFFFFL;
+            ByteBuffer values = valueBuffer(channel, e, Math.min(n, 65536));
+            byte[] chars = new byte[values.remaining()];
+            values.get(chars);
+            return new String(chars, "ISO-8859-1").trim();
+        }
+
+        private ByteBuffer valueBuffer(FileChannel channel, int e, long length) throws IOException {
+            int inline = big ? 8 : 4;
+            int valueOffset = e + (big ? 12 : 8);
+            if (length <= inline) {
+                ByteBuffer values = entries.duplicate().order(order);
+                values.position(valueOffset);
+                values.limit(valueOffset + (int) length);
+                return values;
+            }
+            long position = big ? entries.getLong(valueOffset) : entries.getInt(valueOffset) & 0xFFFFFFFFL;
+            return read(channel, position, (int) length, order);
+        }
+
+        private static int typeSize(int type) {
+            switch (type) {
+                case 3:
+                    return 2;
+                case 4:
+                case 13:
+                    return 4;
+                case 16:
+                case 18:
+                    return 8;
+                default:
+                    return 1;
+            }
+        }
+
+        private static long readValue(ByteBuffer buffer, int index, int type) {
+            switch (type) {
+                case 3:
+                    return buffer.getShort(index) & 0xFFFF;
+                case 4:
+                case 13:
+                    return buffer.getInt(index) & 0xFFFFFFFFL;
+                case 16:
+                case 18:
+                    return buffer.getLong(index);
+                default:
+                    return buffer.get(index) & 0xFF;
+            }
+        }
+    }
+}
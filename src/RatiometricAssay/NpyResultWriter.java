@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes results as a two-dimensional little-endian float32 NumPy array
+ * (.npy, format version 1.0), which can be loaded or memory-mapped with
+ * {@code numpy.load}. Short rows are padded with NaN. Column headings are
+ * not stored; columns are in the same order as the CSV output.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class NpyResultWriter implements ResultWriter {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0};
+
+    @Override
+    public void write(String dir, String name, String[] headings, double[][] rows, String missing) throws IOException {
+        int columns = 0;
+        for (double[] row : rows) {
+            columns = Math.max(columns, row.length);
+        }
+        File output = new File(String.format("%s%s%s.npy", dir, File.separator, name));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            buffer.put(makeHeader(rows.length, columns));
+            for (double[] row : rows) {
+                for (int j = 0; j < columns; j++) {
+                    if (!buffer.hasRemaining()) {
+                        drain(buffer, channel);
+                    }
+                    buffer.putFloat(j < row.length ? (float) row[j] : Float.NaN);
+                }
+            }
+            drain(buffer, channel);
+        }
+    }
+
+    /**
+     * The header is padded with spaces so that the data starts on a 64-byte
+     * boundary, as the format requires.
+     */
+    static byte[] makeHeader(int rows, int columns) {
+        StringBuilder dict = new StringBuilder(String.format("{'descr': '<f4', 'fortran_order': False, 'shape': (%d, %d), }", rows, columns));
+        int unpadded = MAGIC.length + 2 + dict.length() + 1;
+        for (int i = unpadded; i % 64 != 0; i++) {
+            dict.append(' ');
+        }
+        dict.append('\n');
+        byte[] text = dict.toString().getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 2 + text.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).putShort((short) text.length).put(text);
+        return header.array();
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Analyses each cell in the field separately. The mask of every frame is
+ * split into connected components, which are tracked from frame to frame
+ * by greatest overlap. Each tracked object gets its own distance-indexed
+ * ratio map, profile points and velocities, written to its own directory,
+ * and Objects.csv summarises all of them.
+ *
+ * Distances are measured from the edge of the field mask, as in the
+ * whole-field analysis. Objects within a frame are processed in parallel.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class ObjectAnalysis {
+
+    public static final String OBJECTS_DIR = "Objects";
+    private final RatiometricAnalyser ra;
+    private int minArea = 1;
+
+    public ObjectAnalysis(RatiometricAnalyser ra) {
+        this.ra = ra;
+    }
+
+    /**
+     * Components with fewer pixels than this are ignored.
+     */
+    public void setMinArea(int minArea) {
+        this.minArea = Math.max(1, minArea);
+    }
+
+    /**
+     * @return the number of objects tracked
+     */
+    public int analyse(ImageStack stack1, ImageStack stack2, String resultsDir) throws IOException {
+        long analysisStart = System.nanoTime();
+        int n = stack1.size();
+        ArrayList<Track> tracks = new ArrayList<>();
+        FrameExecutor executor = ra.createExecutor();
+        ra.startMetrics(stack1, executor);
+        AnalysisMetrics metrics = ra.getMetrics();
+        AnalysisCancelledException cancelled = null;
+        ra.startStage("Objects", n);
+        try {
+            FrameObjects previous = null;
+            int chunkSize = executor.getParallelism();
+            for (int start = 1; start <= n; start += chunkSize) {
+                final int first = start;
+                int last = Math.min(n, start + chunkSize - 1);
+                final FrameObjects[] results = new FrameObjects[last - first + 1];
+                long chunkStart = System.nanoTime();
+                executor.run(first, last, i -> {
+                    results[i - first] = processFrame(stack1, stack2, i);
+                });
+                for (String stage : new String[]{"Segmentation", "EDM", "Objects"}) {
+                    metrics.recordWall(stage, chunkStart);
+                }
+                long trackStart = System.nanoTime();
+                long trackBytes = AnalysisMetrics.allocatedBytes();
+                for (FrameObjects current : results) {
+                    track(previous, current, tracks);
+                    if (previous != null) {
+                        previous.components = null;
+                    }
+                    previous = current;
+                }
+                metrics.recordSerial("Tracking", trackStart, trackBytes);
+            }
+        } catch (AnalysisCancelledException e) {
+            cancelled = e;
+        } finally {
+            executor.shutdown();
+        }
+        for (Track t : tracks) {
+            t.end();
+        }
+        long saveStart = System.nanoTime();
+        save(tracks, resultsDir);
+        metrics.recordWall("Saving objects", saveStart);
+        ra.finishMetrics(resultsDir, analysisStart);
+        if (cancelled != null) {
+            throw cancelled;
+        }
+        return tracks.size();
+    }
+
+    private FrameObjects processFrame(ImageStack stack1, ImageStack stack2, int i) {
+        AnalysisMetrics metrics = ra.getMetrics();
+        ImageProcessor slice1 = stack1.getProcessor(i);
+        int width = slice1.getWidth();
+        int height = slice1.getHeight();
+        long start = System.nanoTime();
+        long bytes = AnalysisMetrics.allocatedBytes();
+        ImageProcessor binary = ra.segment(slice1);
+        metrics.recordFrame("Segmentation", start, bytes);
+        start = System.nanoTime();
+        bytes = AnalysisMetrics.allocatedBytes();
+        float[] edm = ra.distanceTransform(binary).getDistances();
+        metrics.recordFrame("EDM", start, bytes);
+        start = System.nanoTime();
+        bytes = AnalysisMetrics.allocatedBytes();
+        ComponentLabeller components = ComponentLabeller.label(binary, minArea);
+        int count = components.getCount();
+        int[] labels = components.getLabels();
+        float[] maxima = new float[count + 1];
+        for (int p = 0; p < labels.length; p++) {
+            if (labels[p] > 0) {
+                maxima[labels[p]] = Math.max(maxima[labels[p]], edm[p]);
+            }
+        }
+        Object pix1 = ra.subtractBackground(slice1.getPixels(), width, height);
+        Object pix2 = ra.subtractBackground(MappedTiffStack.getPixelData(stack2, i), width, height);
+        FrameObjects result = new FrameObjects(i - 1, components);
+        SpanSplitter.forEachSpan(count, 1, (firstObject, lastObject) -> {
+            for (int k = firstObject; k < lastObject; k++) {
+                int label = k + 1;
+                int[] bounds = components.getBounds(label);
+                result.rows[k] = new double[Math.round(maxima[label]) + 1];
+                ra.binObject(pix1, pix2, edm, labels, label, bounds, width, result.rows[k]);
+                result.masks[k] = BitMask.fromLabels(labels, label, bounds, edm, width, height);
+            }
+            return 0.0f;
+        });
+        metrics.recordFrame("Objects", start, bytes);
+        return result;
+    }
+
+    /**
+     * Assigns each object in the current frame to the track of the object in
+     * the previous frame that it overlaps most, greatest overlaps first.
+     * Objects left unassigned start new tracks, and tracks not continued
+     * into the current frame end.
+     */
+    private void track(FrameObjects previous, FrameObjects current, ArrayList<Track> tracks) {
+        int count = current.components.getCount();
+        int[] assigned = new int[count + 1];
+        Arrays.fill(assigned, -1);
+        if (previous != null && previous.components.getCount() > 0) {
+            int[] prevLabels = previous.components.getLabels();
+            int[] labels = current.components.getLabels();
+            int width = current.components.getWidth();
+            int[] overlap = new int[previous.components.getCount() + 1];
+            ArrayList<long[]> candidates = new ArrayList<>();
+            for (int label = 1; label <= count; label++) {
+                int[] b = current.components.getBounds(label);
+                for (int y = b[1]; y <= b[3]; y++) {
+                    for (int x = b[0], p = y * width + x; x <= b[2]; x++, p++) {
+                        if (labels[p] == label && prevLabels[p] > 0) {
+                            overlap[prevLabels[p]]++;
+                        }
+                    }
+                }
+                for (int prev = 1; prev < overlap.length; prev++) {
+                    if (overlap[prev] > 0) {
+                        candidates.add(new long[]{overlap[prev], prev, label});
+                        overlap[prev] = 0;
+                    }
+                }
+            }
+            Collections.sort(candidates, (a, b) -> Long.compare(b[0], a[0]));
+            boolean[] taken = new boolean[overlap.length];
+            for (long[] c : candidates) {
+                int prev = (int) c[1];
+                int label = (int) c[2];
+                int t = previous.tracks[prev];
+                if (!taken[prev] && assigned[label] < 0 && t >= 0) {
+                    taken[prev] = true;
+                    assigned[label] = t;
+                }
+            }
+        }
+        current.tracks = new int[count + 1];
+        Arrays.fill(current.tracks, -1);
+        for (int label = 1; label <= count; label++) {
+            Track t;
+            if (assigned[label] >= 0) {
+                t = tracks.get(assigned[label]);
+            } else {
+                t = new Track(tracks.size() + 1, current.frame);
+                tracks.add(t);
+            }
+            current.tracks[label] = t.id - 1;
+            t.add(current.rows[label - 1], current.masks[label - 1], current.components.getArea(label), ra);
+        }
+        for (int prev = 1; previous != null && prev < previous.tracks.length; prev++) {
+            Track t = previous.tracks[prev] >= 0 ? tracks.get(previous.tracks[prev]) : null;
+            if (t != null && t.getLastFrame() < current.frame) {
+                t.end();
+            }
+        }
+    }
+
+    private void save(ArrayList<Track> tracks, String resultsDir) throws IOException {
+        File objectsDir = new File(resultsDir, OBJECTS_DIR);
+        if (!tracks.isEmpty() && !(objectsDir.isDirectory() || objectsDir.mkdirs())) {
+            throw new IOException("Failed to create output directories.");
+        }
+        double[][] summary = new double[tracks.size()][];
+        FrameExecutor executor = ra.createExecutor();
+        ra.startStage("Saving objects", tracks.size());
+        try {
+            executor.run(1, tracks.size(), i -> {
+                Track t = tracks.get(i - 1);
+                File dir = new File(objectsDir, String.format("Object_%03d", t.id));
+                if (!(dir.isDirectory() || dir.mkdirs())) {
+                    throw new IOException(String.format("Cannot create %s", dir.getAbsolutePath()));
+                }
+                t.save(dir.getAbsolutePath(), ra);
+                summary[i - 1] = new double[]{t.id, t.firstFrame * ra.getTimeRes(),
+                    (t.firstFrame + t.rows.size() - 1) * ra.getTimeRes(), t.rows.size(), t.areaSum / t.rows.size()};
+            });
+        } finally {
+            executor.shutdown();
+        }
+        ra.getResultWriter().write(resultsDir, "Objects", new String[]{"Object", "First Time (s)", "Last Time (s)", "Frames", "Mean Area (pixels)"}, summary, "NaN");
+    }
+
+    private static class FrameObjects {
+
+        final int frame;
+        ComponentLabeller components;
+        final double[][] rows;
+        final BitMask[] masks;
+        int[] tracks;
+
+        FrameObjects(int frame, ComponentLabeller components) {
+            this.frame = frame;
+            this.components = components;
+            this.rows = new double[components.getCount()][];
+            this.masks = new BitMask[components.getCount()];
+        }
+    }
+
+    private static class Track {
+
+        final int id;
+        final int firstFrame;
+        final ArrayList<double[]> rows = new ArrayList<>();
+        final ArrayList<Double> vels = new ArrayList<>();
+        final BitMask[] masks = new BitMask[3];
+        double areaSum;
+        int maxDist;
+
+        Track(int id, int firstFrame) {
+            this.id = id;
+            this.firstFrame = firstFrame;
+        }
+
+        void add(double[] row, BitMask mask, int area, RatiometricAnalyser ra) {
+            rows.add(row);
+            maxDist = Math.max(maxDist, row.length - 1);
+            areaSum += area;
+            masks[0] = masks[1];
+            masks[1] = masks[2];
+            masks[2] = mask;
+            if (rows.size() >= 3) {
+                vels.add(ra.calcVelocity(masks[0], masks[2], masks[1].getPerimeter()));
+            }
+        }
+
+        void save(String dir, RatiometricAnalyser ra) throws IOException {
+            int n = rows.size();
+            double[][] data = new double[n][];
+            for (int i = 0; i < n; i++) {
+                data[i] = Arrays.copyOf(rows.get(i), maxDist + 1);
+            }
+            ra.saveMap(data, firstFrame, dir);
+            if (n >= 2) {
+                double[] v = new double[n];
+                for (int i = 0; i < vels.size(); i++) {
+                    v[i + 1] = vels.get(i);
+                }
+                v[n - 1] = v[n - 2];
+                ra.plotVelocities(v, firstFrame, dir, false);
+            }
+        }
+
+        int getLastFrame() {
+            return firstFrame + rows.size() - 1;
+        }
+
+        /**
+         * Releases the masks of a track that will not be continued.
+         */
+        void end() {
+            Arrays.fill(masks, null);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import java.util.Arrays;
+
+/**
+ * Streaming quantile estimates for many independent bins using the P&sup2;
+ * algorithm (Jain &amp; Chlamtac, 1985). Each bin and quantile uses five
+ * markers, so memory is fixed regardless of the number of values added.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class P2QuantileSketch {
+
+    private static final int MARKERS = 5;
+    private final double[] probabilities;
+    private final int nq;
+    private double[] heights, desired;
+    private int[] positions;
+    private long[] counts;
+    private int bins;
+    private final double[] scratch = new double[MARKERS];
+
+    public P2QuantileSketch(double[] probabilities) {
+        this.probabilities = probabilities.clone();
+        this.nq = probabilities.length;
+        ensureCapacity(0);
+    }
+
+    public double[] getProbabilities() {
+        return probabilities.clone();
+    }
+
+    /**
+     * Clears all estimates, reusing existing storage where possible.
+     */
+    public void reset(int bins) {
+        ensureCapacity(bins);
+        this.bins = bins;
+        Arrays.fill(counts, 0, bins, 0L);
+    }
+
+    private void ensureCapacity(int bins) {
+        if (counts != null && counts.length >= bins) {
+            return;
+        }
+        int size = bins * nq * MARKERS;
+        heights = new double[size];
+        desired = new double[size];
+        positions = new int[size];
+        counts = new long[bins];
+    }
+
+    public void add(int bin, double x) {
+        long count = counts[bin]++;
+        for (int k = 0; k < nq; k++) {
+            int base = (bin * nq + k) * MARKERS;
+            if (count < MARKERS) {
+                heights[base + (int) count] = x;
+                if (count == MARKERS - 1) {
+                    initialise(base, probabilities[k]);
+                }
+            } else {
+                update(base, probabilities[k], x);
+            }
+        }
+    }
+
+    private void initialise(int base, double p) {
+        Arrays.sort(heights, base, base + MARKERS);
+        for (int i = 0; i < MARKERS; i++) {
+            positions[base + i] = i + 1;
+        }
+        desired[base] = 1.0;
+        desired[base + 1] = 1.0 + 2.0 * p;
+        desired[base + 2] = 1.0 + 4.0 * p;
+        desired[base + 3] = 3.0 + 2.0 * p;
+        desired[base + 4] = 5.0;
+    }
+
+    private void update(int base, double p, double x) {
+        int k;
+        if (x < heights[base]) {
+            heights[base] = x;
+            k = 0;
+        } else if (x >= heights[base + 4]) {
+            heights[base + 4] = x;
+            k = 3;
+        } else {
+            k = 0;
+            while (k < 3 && x >= heights[base + k + 1]) {
+                k++;
+            }
+        }
+        for (int i = k + 1; i < MARKERS; i++) {
+            positions[base + i]++;
+        }
+        desired[base + 1] += p / 2.0;
+        desired[base + 2] += p;
+        desired[base + 3] += (1.0 + p) / 2.0;
+        desired[base + 4] += 1.0;
+        for (int i = 1; i < MARKERS - 1; i++) {
+            int j = base + i;
+            double d = desired[j] - positions[j];
+            if ((d >= 1.0 && positions[j + 1] - positions[j] > 1) || (d <= -1.0 && positions[j - 1] - positions[j] < -1)) {
+                int s = d > 0 ? 1 : -1;
+                double q = parabolic(j, s);
+                if (heights[j - 1] < q && q < heights[j + 1]) {
+                    heights[j] = q;
+                } else {
+                    heights[j] += s * (heights[j + s] - heights[j]) / (positions[j + s] - positions[j]);
+                }
+                positions[j] += s;
+            }
+        }
+    }
+
+    private double parabolic(int j, int s) {
+        double n0 = positions[j - 1], n1 = positions[j], n2 = positions[j + 1];
+        return heights[j] + s / (n2 - n0)
+                * ((n1 - n0 + s) * (heights[j + 1] - heights[j]) / (n2 - n1)
+                + (n2 - n1 - s) * (heights[j] - heights[j - 1]) / (n1 - n0));
+    }
+
+    /**
+     * Returns the current estimate of the k-th quantile in the specified bin,
+     * or NaN if the bin is empty.
+     */
+    public double getQuantile(int bin, int k) {
+        long count = counts[bin];
+        int base = (bin * nq + k) * MARKERS;
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (count >= MARKERS) {
+            return heights[base + 2];
+        }
+        System.arraycopy(heights, base, scratch, 0, (int) count);
+        Arrays.sort(scratch, 0, (int) count);
+        return scratch[(int) Math.round(probabilities[k] * (count - 1))];
+    }
+
+    public int getBins() {
+        return bins;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stores ratio images as 16-bit fixed-point values, half the size of
+ * floating-point ones. Code q represents offset + scale * (q - 1), so ratios
+ * from offset to offset + 65534 * scale are stored to within scale / 2;
+ * ratios outside that range are clamped to it, and code 0 marks ratios that
+ * are not finite. The codes are saved with an ImageJ calibration, so ImageJ
+ * shows the decoded ratios.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class RatioEncoding {
+
+    public static final String UNIT = "ratio";
+    private static final int MAX_CODE = 65535;
+    private final double offset, scale;
+
+    public RatioEncoding(double offset, double scale) {
+        if (!(scale > 0.0) || Double.isInfinite(scale) || Double.isNaN(offset) || Double.isInfinite(offset)) {
+            throw new IllegalArgumentException("The ratio scale must be positive and the offset finite.");
+        }
+        this.offset = offset;
+        this.scale = scale;
+    }
+
+    /**
+     * Returns the encoding described by an ImageJ description with a
+     * straight-line calibration in units of {@value #UNIT}, or null if there
+     * is none.
+     */
+    public static RatioEncoding fromDescription(String description) {
+        if (description == null || !Pattern.compile("(?m)^cf=" + Calibration.STRAIGHT_LINE + "$").matcher(description).find()
+                || !Pattern.compile("(?m)^vunit=" + UNIT + "$").matcher(description).find()) {
+            return null;
+        }
+        Matcher c0 = Pattern.compile("(?m)^c0=(\\S+)$").matcher(description);
+        Matcher c1 = Pattern.compile("(?m)^c1=(\\S+)$").matcher(description);
+        if (!c0.find() || !c1.find()) {
+            return null;
+        }
+        double scale = Double.parseDouble(c1.group(1));
+        return new RatioEncoding(Double.parseDouble(c0.group(1)) + scale, scale);
+    }
+
+    public double getOffset() {
+        return offset;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Returns the largest error of a decoded ratio within the stored range,
+     * apart from floating-point rounding.
+     */
+    public double getMaxError() {
+        return scale / 2.0;
+    }
+
+    public short[] encode(float[] ratio) {
+        short[] codes = new short[ratio.length];
+        for (int i = 0; i < ratio.length; i++) {
+            codes[i] = encode(ratio[i]);
+        }
+        return codes;
+    }
+
+    public short encode(float ratio) {
+        if (Float.isNaN(ratio) || Float.isInfinite(ratio)) {
+            return 0;
+        }
+        long code = Math.round((ratio - offset) / scale) + 1;
+        return (short) Math.max(1, Math.min(MAX_CODE, code));
+    }
+
+    public float decode(short code) {
+        int q = code & 0xFFFF;
+        return q == 0 ? Float.NaN : (float) (offset + scale * (q - 1));
+    }
+
+    /**
+     * Records the decoding as the calibration of an image.
+     */
+    public void calibrate(ImagePlus imp) {
+        imp.getCalibration().setFunction(Calibration.STRAIGHT_LINE, new double[]{offset - scale, scale}, UNIT);
+    }
+
+    /**
+     * Records the decoding in the description of a stack being written.
+     */
+    public void calibrate(TiffStackWriter writer) {
+        writer.setCalibration(offset - scale, scale, UNIT);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s;%s", offset, scale);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.process.FloatBlitter;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Computes the ratio of two channels and bins it by distance from the cell
+ * edge in a single row-major pass over the raw pixel arrays. A constant
+ * background can be subtracted from each channel first. Each row is divided
+ * in a loop of its own, free of branches so that the JIT can vectorise it,
+ * before zero denominators are replaced and the row is binned.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class RatioKernel {
+
+    private final int width;
+    private final float[] row1, row2, edmRow;
+    private float background1, background2;
+    private Float divideByZeroValue;
+    private boolean maskGated;
+
+    public int getWidth() {
+        return width;
+    }
+
+    public RatioKernel(int width) {
+        this.width = width;
+        this.row1 = new float[width];
+        this.row2 = new float[width];
+        this.edmRow = new float[width];
+    }
+
+    /**
+     * Sets the constant background subtracted from each channel.
+     */
+    public void setBackground(float background1, float background2) {
+        this.background1 = background1;
+        this.background2 = background2;
+    }
+
+    /**
+     * Sets the ratio given to pixels whose denominator, after background
+     * subtraction, is zero. If null, the default, the value is that of
+     * {@link FloatBlitter#DIVIDE}. Ratios that are not finite are not binned.
+     */
+    public void setDivideByZeroValue(Float divideByZeroValue) {
+        this.divideByZeroValue = divideByZeroValue;
+    }
+
+    /**
+     * If set, the ratio is only computed and binned inside the cell, where
+     * the distance map is non-zero; it is NaN elsewhere.
+     */
+    public void setMaskGated(boolean maskGated) {
+        this.maskGated = maskGated;
+    }
+
+    /**
+     * Processes one frame. Division by zero follows the same rule as
+     * {@link FloatBlitter#DIVIDE} unless a value has been set. Infinite and
+     * NaN ratios appear in the ratio image but are not binned, so that a
+     * zero denominator cannot make a whole bin infinite.
+     *
+     * @param pix1 channel 1 pixels (byte[], short[] or float[], or the
+     * equivalent buffer from {@link MappedTiffStack#getPlane(int)})
+     * @param pix2 channel 2 pixels, as for pix1
+     * @param edmPix distance map pixels (byte[], short[] or float[])
+     * @param height frame height
+     * @param ratio destination for the ratio image, or null if not required
+     * @param bins accumulator for the ratio, indexed by rounded EDM value
+     */
+    public void process(Object pix1, Object pix2, Object edmPix, int height, float[] ratio, DistanceBinAccumulator bins) {
+        processRows(pix1, pix2, edmPix, 0, height, ratio, bins);
+    }
+
+    /**
+     * As {@link #process}, but for rows [first, last) of the frame only.
+     */
+    public void processRows(Object pix1, Object pix2, Object edmPix, int first, int last, float[] ratio, DistanceBinAccumulator bins) {
+        float zero = getDivideByZeroValue();
+        for (int y = first, offset = first * width; y < last; y++, offset += width) {
+            getRow(pix1, offset, width, row1);
+            getRow(pix2, offset, width, row2);
+            getRow(edmPix, offset, width, edmRow);
+            divide(width);
+            for (int x = 0; x < width; x++) {
+                float r = row2[x] == 0.0f ? zero : row1[x];
+                int bin = Math.round(edmRow[x]);
+                if (maskGated && bin == 0) {
+                    r = Float.NaN;
+                } else if (Float.isFinite(r)) {
+                    bins.add(bin, r);
+                }
+                if (ratio != null) {
+                    ratio[offset + x] = r;
+                }
+            }
+        }
+    }
+
+    /**
+     * Subtracts the backgrounds from the first n values of each channel row,
+     * leaving the denominators in row2, and puts the quotients in row1.
+     */
+    private void divide(int n) {
+        float b1 = background1, b2 = background2;
+        for (int x = 0; x < n; x++) {
+            float denom = row2[x] - b2;
+            row2[x] = denom;
+            row1[x] = (row1[x] - b1) / denom;
+        }
+    }
+
+    private float getDivideByZeroValue() {
+        return divideByZeroValue != null ? divideByZeroValue : FloatBlitter.divideByZeroValue;
+    }
+
+    /**
+     * Bins the ratio at the pixels of one labelled object only.
+     *
+     * @param edm distance map of the frame
+     * @param labels component labels of the frame
+     * @param bounds the object's bounding box, {minX, minY, maxX, maxY}
+     */
+    public void processObject(Object pix1, Object pix2, float[] edm, int[] labels, int label, int[] bounds, DistanceBinAccumulator bins) {
+        float zero = getDivideByZeroValue();
+        int x0 = bounds[0];
+        int span = bounds[2] - x0 + 1;
+        for (int y = bounds[1]; y <= bounds[3]; y++) {
+            int offset = y * width + x0;
+            getRow(pix1, offset, span, row1);
+            getRow(pix2, offset, span, row2);
+            divide(span);
+            for (int x = 0; x < span; x++) {
+                if (labels[offset + x] != label) {
+                    continue;
+                }
+                float r = row2[x] == 0.0f ? zero : row1[x];
+                if (Float.isFinite(r)) {
+                    bins.add(Math.round(edm[offset + x]), r);
+                }
+            }
+        }
+    }
+
+    static void getRow(Object pixels, int offset, int width, float[] dest) {
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int x = 0; x < width; x++) {
+                dest[x] = p[offset + x] & 0xff;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int x = 0; x < width; x++) {
+                dest[x] = p[offset + x] & 0xffff;
+            }
+        } else if (pixels instanceof float[]) {
+            System.arraycopy((float[]) pixels, offset, dest, 0, width);
+        } else if (pixels instanceof ByteBuffer) {
+            ByteBuffer p = (ByteBuffer) pixels;
+            for (int x = 0; x < width; x++) {
+                dest[x] = p.get(offset + x) & 0xff;
+            }
+        } else if (pixels instanceof ShortBuffer) {
+            ShortBuffer p = (ShortBuffer) pixels;
+            for (int x = 0; x < width; x++) {
+                dest[x] = p.get(offset + x) & 0xffff;
+            }
+        } else if (pixels instanceof FloatBuffer) {
+            FloatBuffer p = (FloatBuffer) pixels;
+            for (int x = 0; x < width; x++) {
+                dest[x] = p.get(offset + x);
+            }
+        } else {
+            throw new IllegalArgumentException("Only 8-, 16- and 32-bit greyscale images are supported.");
+        }
+    }
+}
@@ -17,34 +17,31 @@
 package RatiometricAssay;
 
 import Binary.BinaryMaker;
-import Binary.EDMMaker;
-import IO.DataWriter;
 import ImageProcessing.ImageBlurrer;
 import Profile.PeakFinder;
 import UtilClasses.GenUtils;
-import UtilClasses.GenVariables;
 import UtilClasses.Utilities;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.Plot;
+import ij.io.FileSaver;
 import ij.plugin.LutLoader;
+import ij.plugin.filter.BackgroundSubtracter;
 import ij.process.AutoThresholder;
-import ij.process.Blitter;
-import ij.process.ByteBlitter;
-import ij.process.ByteProcessor;
 import ij.process.FloatBlitter;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.LUT;
-import ij.process.StackStatistics;
+import ij.process.ShortProcessor;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 
 public class RatiometricAnalyser {
@@ -52,12 +49,38 @@ public class RatiometricAnalyser {
     private final String title = "Ratiometric Assay Analyser", um = String.format("%c%c", IJ.micronSymbol, 'm');
     private final double spatialRes, timeRes, threshold;
     public static final String[] THRESH_METHODS = AutoThresholder.getMethods();
+    public static final int DEFAULT_EXPECTED_MAX_DISTANCE = 64;
     private final String threshMethod;
     private final double maskBlurRadius;
     private final double sigBlurRadius;
     private final int holeSize;
+    private final int parallelism;
+    private ForkJoinPool pool;
+    private AnalysisMonitor monitor;
+    private AnalysisMetrics metrics = new AnalysisMetrics(1);
+    private boolean logMetrics;
+    private boolean checkpointing;
+    private int tileRows;
+    private int expectedMaxDistance = DEFAULT_EXPECTED_MAX_DISTANCE;
+    private StageCache stageCache;
+    private boolean saveEDM = true;
+    private double background1, background2, rollingBallRadius;
+    private boolean maskGated;
+    private Float divideByZeroValue;
+    private boolean compactEDM;
+    private boolean recursiveGaussian;
+    private RatioEncoding ratioEncoding;
+    private ResultWriter resultWriter = new CsvResultWriter();
+    private DistanceBinAccumulator.Statistic mapStatistic = DistanceBinAccumulator.Statistic.MEAN;
+    private final ThreadLocal<RatioKernel> kernels = new ThreadLocal<>();
+    private final ThreadLocal<DistanceBinAccumulator> accumulators = new ThreadLocal<>();
+    private final ConcurrentLinkedQueue<DistanceBinAccumulator> tilePool = new ConcurrentLinkedQueue<>();
 
     public RatiometricAnalyser(double maskBlurRadius, double sigBlurRadius, String threshMethod, int holeSize, double spatialRes, double timeRes, double threshold) {
+        this(maskBlurRadius, sigBlurRadius, threshMethod, holeSize, spatialRes, timeRes, threshold, 1);
+    }
+
+    public RatiometricAnalyser(double maskBlurRadius, double sigBlurRadius, String threshMethod, int holeSize, double spatialRes, double timeRes, double threshold, int parallelism) {
         this.maskBlurRadius = maskBlurRadius;
         this.threshMethod = threshMethod;
         this.holeSize = holeSize;
@@ -65,47 +88,142 @@ public class RatiometricAnalyser {
         this.timeRes = timeRes;
         this.threshold = threshold;
         this.sigBlurRadius = sigBlurRadius;
+        this.parallelism = Math.max(1, parallelism);
     }
 
     public void analyse(ImageStack stack1, ImageStack stack2) {
-        String resultsDir;
+        String resultsDir = openResultsDirectory(stack1, stack2, false);
+        if (resultsDir == null) {
+            return;
+        }
         try {
-            resultsDir = GenUtils.openResultsDirectory(String.format("%s%s%s",
-                    (Utilities.getFolder(new File(IJ.getDirectory("current")),
-                            "Specify directory for output files...",
-                            true)).getAbsolutePath(), File.separator, title));
+            analyse(stack1, stack2, resultsDir, true);
         } catch (Exception e) {
             GenUtils.error(e.toString());
             return;
         }
-        ImageStack edmStack = makeEDMStack(stack1.duplicate(), resultsDir);
-        plotVelocities(estimateVelocity(edmStack));
-        ImageStack output = new ImageStack(stack1.getWidth(), stack1.getHeight());
-        int n = stack1.getSize();
-        for (int i = 1; i <= n; i++) {
-            FloatProcessor slice1 = stack1.getProcessor(i).convertToFloatProcessor();
-            FloatProcessor slice2 = stack2.getProcessor(i).convertToFloatProcessor();
-            FloatProcessor outSlice = (FloatProcessor) slice1.duplicate();
-            (new FloatBlitter(outSlice)).copyBits(slice2, 0, 0, Blitter.DIVIDE);
-            output.addSlice(outSlice);
-        }
-        ImagePlus outputImp = new ImagePlus("Ratiometric Output", output);
-        outputImp.resetDisplayRange();
-        LUT sixteenColors;
-        if (IJ.getInstance() != null) {
-            sixteenColors = LutLoader.openLut(String.format("%s%s%s%s", IJ.getDirectory("imagej"), "luts", File.separator, "16_colors.lut"));
+        IJ.showStatus(String.format("%s done.", title));
+    }
+
+    /**
+     * Analyses the stacks, writing all results to resultsDir. If
+     * checkpointing is enabled, the distance map maxima, velocities and each
+     * frame's row of the map are recorded as they are computed, and a run
+     * interrupted part way through the ratio images resumes from the first
+     * frame not recorded, appending to the output.tif left by the earlier
+     * run.
+     *
+     * @param showResults if false, nothing is displayed, allowing the
+     * analysis to run headless
+     */
+    public void analyse(ImageStack stack1, ImageStack stack2, String resultsDir, boolean showResults) throws IOException {
+        long start = System.nanoTime();
+        FrameExecutor executor = createExecutor();
+        startMetrics(stack1, executor);
+        double[][] data = new double[stack1.size()][];
+        AnalysisCancelledException cancelled = null;
+        Checkpoint checkpoint = openCheckpoint("analyse", stack1, stack2, resultsDir);
+        String edmKey = null;
+        String mapKey = null;
+        boolean cacheEDM = false;
+        double[][] cachedMap = null;
+        TiffStackWriter output = null;
+        Throwable failure = null;
+        try {
+            if (stageCache != null) {
+                edmKey = StageCache.makeKey("edm", describeInput(stack1, executor), threshMethod, holeSize, maskBlurRadius, compactEDM,
+                        recursiveGaussian);
+                mapKey = StageCache.makeKey("map", edmKey, describeInput(stack2, executor), mapStatistic, describeRatio(),
+                        ratioEncoding);
+            }
+            float[] maxima = checkpoint != null ? checkpoint.getMaxima() : null;
+            ImageStack edmStack = null;
+            if (maxima != null) {
+                edmStack = loadEDMStack(stack1, new File(resultsDir, "EDM.tif"));
+                if (edmStack != null) {
+                    IJ.log(String.format("Resuming from the distance maps in %s%sEDM.tif", resultsDir, File.separator));
+                }
+            }
+            if (edmStack == null && edmKey != null) {
+                maxima = new float[stack1.size()];
+                edmStack = loadCachedEDM(edmKey, stack1, resultsDir, maxima);
+            }
+            if (edmStack == null) {
+                maxima = new float[stack1.size()];
+                edmStack = makeEDMStack(stack1, resultsDir, executor, maxima);
+                cacheEDM = edmKey != null;
+                if (checkpoint != null && checkpoint.getMaxima() == null) {
+                    checkpoint.writeMaxima(maxima);
+                    checkpoint.flush();
+                }
+            }
+            double[] vels = checkpoint != null ? checkpoint.getVelocities() : null;
+            if (vels == null) {
+                vels = estimateVelocity(edmStack, executor);
+                if (checkpoint != null) {
+                    checkpoint.writeVelocities(vels);
+                    checkpoint.flush();
+                }
+            }
+            plotVelocities(vels, resultsDir, showResults);
+            cachedMap = mapKey != null ? loadCachedMap(mapKey, resultsDir, showResults) : null;
+            if (cachedMap == null) {
+                int resumed = checkpoint != null ? resumeRatio(checkpoint, stack1, resultsDir, data) : 0;
+                output = openRatioWriter(resultsDir, stack1, executor, resumed);
+                indexWithDistanceMap(stack1, stack2, edmStack, getMaxDistance(maxima), null, output, data, executor, resumed + 1,
+                        checkpoint, maxima);
+            }
+            if (cacheEDM) {
+                cacheEDM(edmKey, resultsDir, edmStack, maxima);
+            }
+        } catch (AnalysisCancelledException e) {
+            cancelled = e;
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            executor.shutdown();
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+            closeWriter(output, "Write output.tif", failure != null ? failure : cancelled);
+        }
+        int completed = cachedMap != null ? cachedMap.length : output != null ? output.getFrameCount() : 0;
+        if (completed < 1) {
+            finishMetrics(resultsDir, start);
+            if (cancelled != null) {
+                throw cancelled;
+            }
+            return;
+        }
+        if (cachedMap != null) {
+            data = cachedMap;
         } else {
-            sixteenColors = LutLoader.openLut("C:\\Users\\barryd\\FIJI\\DEV\\Fiji.app\\luts\\16_colors.lut");
+            data = Arrays.copyOf(data, completed);
+            if (showResults) {
+                showOutput(output.getFile());
+            }
+            if (mapKey != null && cancelled == null) {
+                cacheMap(mapKey, resultsDir, data);
+            }
+        }
+        saveMap(data, resultsDir);
+        if (checkpoint != null && cancelled == null) {
+            checkpoint.delete();
+        }
+        finishMetrics(resultsDir, start);
+        if (cancelled != null) {
+            throw cancelled;
+        }
+    }
+
+    public void analyseStreaming(ImageStack stack1, ImageStack stack2) {
+        String resultsDir = openResultsDirectory(stack1, stack2, true);
+        if (resultsDir == null) {
+            return;
         }
-        outputImp.setLut(sixteenColors);
-        outputImp.show();
-        IJ.saveAs(outputImp, "TIF", String.format("%s%s%s", resultsDir, File.separator, "output.tif"));
         try {
-            double[][] data = indexWithDistanceMap(output, edmStack, resultsDir);
-            double[][] smoothedData = PeakFinder.smoothData2D(data, sigBlurRadius);
-            File map = new File(String.format("%s%s%s", resultsDir, File.separator, "Map.csv"));
-            DataWriter.saveValues(smoothedData, map, null, null, false);
-            plotProfilePoints(smoothedData, resultsDir);
+            analyseStreaming(stack1, stack2, resultsDir, true);
         } catch (Exception e) {
             GenUtils.error(e.toString());
             return;
@@ -113,101 +231,1214 @@ public class RatiometricAnalyser {
         IJ.showStatus(String.format("%s done.", title));
     }
 
-    public static ImageStack makeBinaryStack(ImageStack input, double maskBlurRadius, String threshMethod, int holeSize) {
-        ImageBlurrer.blurStack(input, maskBlurRadius);
-        return BinaryMaker.makeBinaryStack(new ImagePlus("", input), threshMethod, -1, holeSize);
-    }
-
-    ImageStack makeEDMStack(ImageStack input, String directory) {
-        ImageStack binary = makeBinaryStack(input, maskBlurRadius, threshMethod, holeSize);
-        ImageStack output = EDMMaker.makeEDMStack(binary);
-        IJ.saveAs(new ImagePlus("", output), "TIF", String.format("%s%s%s", directory, File.separator, "EDM"));
-        return output;
-    }
-
-    double[][] compressSlices(ImageStack stack, String dir) throws IOException, FileNotFoundException {
-        File output = new File(String.format("%s%s%s", dir, File.separator, "Map.csv"));
-        CSVPrinter printer = new CSVPrinter(new OutputStreamWriter(new FileOutputStream(output), GenVariables.ISO), CSVFormat.EXCEL);
-        int n = stack.size();
-        int width = stack.getWidth();
-        int height = stack.getHeight();
-        double[][] data = new double[n][width];
-        for (int i = 1; i <= n; i++) {
-            ImageProcessor slice = stack.getProcessor(i);
-            for (int x = 0; x < width; x++) {
-                double sum = 0.0;
-                for (int y = 0; y < height; y++) {
-                    sum += slice.getPixelValue(x, y);
+    /**
+     * Analyses the stacks one frame at a time so that peak memory depends on
+     * the frame size rather than the length of the movie. Inputs are best
+     * supplied as virtual stacks. Ratio and, if saved, EDM frames are written
+     * to disk as image sequences as soon as they are computed. If
+     * checkpointing is enabled, a run interrupted part way through resumes
+     * from the first frame not recorded in the checkpoint.
+     */
+    public void analyseStreaming(ImageStack stack1, ImageStack stack2, String resultsDir, boolean showResults) throws IOException {
+        File ratioDir = new File(resultsDir, "output");
+        File edmDir = new File(resultsDir, "EDM");
+        if (!(ratioDir.isDirectory() || ratioDir.mkdirs()) || (saveEDM && !(edmDir.isDirectory() || edmDir.mkdirs()))) {
+            throw new IOException("Failed to create output directories.");
+        }
+        int n = stack1.size();
+        double[][] data = new double[n][];
+        double[] vels = new double[n];
+        BitMask[] masks = new BitMask[n];
+        int maxDist = 0;
+        Checkpoint checkpoint = openCheckpoint("streaming", stack1, stack2, resultsDir);
+        int resumed = checkpoint != null ? checkpoint.getCompletedFrames() : 0;
+        for (int i = 1; i <= resumed; i++) {
+            Checkpoint.Frame frame = checkpoint.getFrame(i);
+            data[i - 1] = frame.row;
+            maxDist = Math.max(maxDist, frame.row.length - 1);
+            if (i >= 3) {
+                vels[i - 2] = frame.velocity;
+            }
+        }
+        if (resumed > 0 && resumed < n) {
+            IJ.log(String.format("Resuming from frame %d of %d.", resumed + 1, n));
+            for (int i = Math.max(1, resumed - 1); i <= resumed; i++) {
+                masks[i - 1] = makeMask(stack1.getProcessor(i));
+            }
+        }
+        int completed = resumed;
+        AnalysisCancelledException cancelled = null;
+        long analysisStart = System.nanoTime();
+        FrameExecutor executor = createExecutor();
+        startMetrics(stack1, executor);
+        startStage("Analysing", n - resumed);
+        try {
+            int chunkSize = executor.getParallelism();
+            for (int start = resumed + 1; start <= n; start += chunkSize) {
+                final int first = start;
+                int last = Math.min(n, start + chunkSize - 1);
+                final FrameResult[] results = new FrameResult[last - first + 1];
+                long chunkStart = System.nanoTime();
+                executor.run(first, last, i -> {
+                    results[i - first] = processFrame(stack1.getProcessor(i), MappedTiffStack.getPixelData(stack2, i));
+                });
+                recordFrameWall(chunkStart);
+                for (int i = first; i <= last; i++) {
+                    FrameResult result = results[i - first];
+                    long writeStart = System.nanoTime();
+                    long writeBytes = AnalysisMetrics.allocatedBytes();
+                    saveRatioFrame(result.ratio, ratioDir, i);
+                    if (saveEDM) {
+                        saveFrame(result.edm, edmDir, "EDM", i);
+                    }
+                    metrics.recordFrame("Write frames", writeStart, writeBytes);
+                    metrics.recordWall("Write frames", writeStart);
+                    data[i - 1] = result.distanceProfile;
+                    maxDist = Math.max(maxDist, result.distanceProfile.length - 1);
+                    masks[i - 1] = result.mask;
+                    if (i >= 3) {
+                        long velStart = System.nanoTime();
+                        long velBytes = AnalysisMetrics.allocatedBytes();
+                        vels[i - 2] = calcVelocity(masks[i - 3], masks[i - 1], masks[i - 2].getPerimeter());
+                        metrics.recordFrame("Velocity", velStart, velBytes);
+                        metrics.recordWall("Velocity", velStart);
+                        masks[i - 3] = null;
+                    }
+                    if (checkpoint != null) {
+                        checkpoint.writeFrame(i, result.edmMax, result.mask, i >= 3 ? vels[i - 2] : Double.NaN, result.distanceProfile);
+                    }
+                    completed = i;
                 }
-                data[i - 1][x] = sum / height;
-                printer.print(String.valueOf(data[i - 1][x]));
-            }
-            printer.println();
-        }
-        printer.close();
-        return data;
-    }
-
-    double[][] indexWithDistanceMap(ImageStack stack, ImageStack edmStack, String dir) throws IOException, FileNotFoundException {
-        int n = stack.size();
-        StackStatistics stats = new StackStatistics(new ImagePlus("", edmStack));
-        int maxDist = (int) Math.round(stats.max);
-        int width = stack.getWidth();
-        int height = stack.getHeight();
-        int imArea = width * height;
-        double[][] data = new double[n][maxDist + 1];
-        for (int i = 1; i <= n; i++) {
-            ImageProcessor slice = stack.getProcessor(i).convertToFloatProcessor();
-            slice.multiply(1.0 / imArea);
-            ImageProcessor edmSlice = edmStack.getProcessor(i);
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    int edmDist = (int) Math.round(edmSlice.getPixelValue(x, y));
-                    data[i - 1][edmDist] = slice.getPixelValue(x, y);
+                if (checkpoint != null) {
+                    checkpoint.flush();
                 }
             }
+        } catch (AnalysisCancelledException e) {
+            cancelled = e;
+        } finally {
+            executor.shutdown();
+            metrics.recordWall("Frame pipeline", analysisStart);
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+        }
+        if (completed < n) {
+            data = Arrays.copyOf(data, completed);
+            vels = Arrays.copyOf(vels, completed);
+        }
+        if (completed >= 2) {
+            plotVelocities(summariseVelocities(vels), resultsDir, showResults);
+        }
+        for (int i = 0; i < completed; i++) {
+            if (data[i].length < maxDist + 1) {
+                data[i] = Arrays.copyOf(data[i], maxDist + 1);
+            }
+        }
+        if (completed > 0) {
+            saveMap(data, resultsDir);
+        }
+        if (checkpoint != null && cancelled == null) {
+            checkpoint.delete();
+        }
+        finishMetrics(resultsDir, analysisStart);
+        if (cancelled != null) {
+            throw cancelled;
         }
-        return data;
     }
 
-    void plotProfilePoints(double[][] smoothedData, String dir) throws IOException, FileNotFoundException {
-        File output = new File(String.format("%s%s%s", dir, File.separator, "ProfilePoints.csv"));
-        CSVPrinter printer = new CSVPrinter(new OutputStreamWriter(new FileOutputStream(output), GenVariables.ISO), CSVFormat.EXCEL);
-        printer.printRecord("Time (s)", "x1 " + um, "x2 " + um, "Width " + um);
-        double[] extrema = PeakFinder.findMinAndMax(smoothedData);
-        for (int i = 0; i < smoothedData.length; i++) {
-            printer.print(i * timeRes);
-            int[] indices = PeakFinder.findRegionWidth(smoothedData[i], threshold, extrema[0], extrema[1]);
-            for (int j = 0; j < indices.length; j++) {
-                if (indices[j] >= 0) {
-                    printer.print(indices[j] * spatialRes);
+    /**
+     * Frame-level work is scheduled on the specified pool instead of a pool
+     * private to each run, so that several analyses can share one set of
+     * worker threads.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the per-distance statistic from which the map is built. The
+     * default is the mean ratio at each distance.
+     *
+     * Results compatibility: earlier versions did not compute a statistic.
+     * Each map entry was the ratio of the last pixel visited at that
+     * distance, scanning column by column, divided by the area of the frame.
+     * Map.csv, and the profile points found from it, are therefore not
+     * comparable with those of earlier versions.
+     */
+    public void setMapStatistic(DistanceBinAccumulator.Statistic mapStatistic) {
+        this.mapStatistic = mapStatistic;
+    }
+
+    /**
+     * Progress is reported to, and cancellation checked by, the specified
+     * monitor. If an analysis is cancelled, results for the frames completed
+     * so far are saved before {@link AnalysisCancelledException} is thrown.
+     */
+    public void setMonitor(AnalysisMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * Sets the format in which the map, profile points and velocities are
+     * written. The default is CSV.
+     */
+    public void setResultWriter(ResultWriter resultWriter) {
+        this.resultWriter = resultWriter;
+    }
+
+    /**
+     * If set, the stage timings of each analysis are written to the ImageJ
+     * log as well as to {@value AnalysisMetrics#FILENAME} in the results
+     * directory.
+     */
+    public void setLogMetrics(boolean logMetrics) {
+        this.logMetrics = logMetrics;
+    }
+
+    /**
+     * If set, intermediate results are recorded in
+     * {@value Checkpoint#FILENAME} in the results directory as the analysis
+     * proceeds. A later run with the same parameters and input in the same
+     * directory picks up where an interrupted run stopped, and
+     * {@link #openResultsDirectory(ImageStack, ImageStack, boolean)} returns
+     * that directory rather than a new one. The checkpoint is deleted once
+     * the analysis completes.
+     */
+    public void setCheckpointing(boolean checkpointing) {
+        this.checkpointing = checkpointing;
+    }
+
+    /**
+     * Processes each frame in bands of tileRows rows rather than as a whole,
+     * for fields of view too large to hold several floating-point copies of
+     * each frame. The mask blur, distance map and ratio binning run band by
+     * band, in parallel, with halos sized from the mask blur radius and
+     * expectedMaxDistance; bands in which the distance map reaches beyond its
+     * halo are recomputed with a larger one. Thresholding and hole filling
+     * still see the whole frame. Zero, the default, disables tiling.
+     */
+    public void setTiling(int tileRows, int expectedMaxDistance) {
+        this.tileRows = Math.max(0, tileRows);
+        this.expectedMaxDistance = Math.max(1, expectedMaxDistance);
+    }
+
+    /**
+     * If set, analyse() reuses the distance maps and the distance-binned map
+     * from earlier analyses of the same input with the same mask parameters
+     * and map statistic, and stores them for later analyses if they had to
+     * be computed. Changing only the map smoothing, the profile threshold or
+     * the resolutions then skips segmentation, the distance maps and the
+     * ratio.
+     */
+    public void setStageCache(StageCache stageCache) {
+        this.stageCache = stageCache;
+    }
+
+    /**
+     * If set, the mask blur and the map smoothing use {@link RecursiveGaussian},
+     * whose cost does not depend on sigma, rather than ImageBlurrer and
+     * PeakFinder. The results differ slightly from the default, so Map.csv
+     * and the masks are not identical to those of earlier versions. Tiled
+     * frames are always blurred with the recursive filter.
+     */
+    public void setRecursiveGaussian(boolean recursiveGaussian) {
+        this.recursiveGaussian = recursiveGaussian;
+    }
+
+    /**
+     * Whether the distance maps are saved as EDM.tif, which is the default.
+     * They are only an intermediate, so large analyses can skip writing
+     * them; a checkpointed run then has to recompute the distance maps when
+     * it resumes, unless they are cached.
+     */
+    public void setSaveEDM(boolean saveEDM) {
+        this.saveEDM = saveEDM;
+    }
+
+    /**
+     * Sets the background subtracted from each channel before the ratio is
+     * computed: a constant per channel and, if rollingBallRadius is positive,
+     * a rolling-ball background estimated from each frame. The rolling ball
+     * needs a floating-point copy of both channels of every frame, even when
+     * tiling.
+     */
+    public void setBackground(double background1, double background2, double rollingBallRadius) {
+        this.background1 = background1;
+        this.background2 = background2;
+        this.rollingBallRadius = rollingBallRadius;
+    }
+
+    /**
+     * If set, the ratio is only computed inside the mask; outside it, the
+     * ratio image is NaN and nothing is binned at distance zero.
+     */
+    public void setMaskGated(boolean maskGated) {
+        this.maskGated = maskGated;
+    }
+
+    /**
+     * Sets the ratio given to pixels with a zero denominator, such as NaN or
+     * zero. Ratios that are not finite are left out of the map. If null, the
+     * default, ImageJ's divide-by-zero value is used.
+     */
+    public void setDivideByZeroValue(Float divideByZeroValue) {
+        this.divideByZeroValue = divideByZeroValue;
+    }
+
+    /**
+     * If set, distance maps are rounded to 16-bit integers, halving the
+     * memory they take and the size of EDM.tif. Distances are rounded when
+     * they are binned, and the only distances below 1.5 are 1 and the square
+     * root of 2, so the map, the profile points and the velocities are
+     * exactly as with floating-point distance maps.
+     */
+    public void setCompactEDM(boolean compactEDM) {
+        this.compactEDM = compactEDM;
+    }
+
+    /**
+     * Sets the fixed-point encoding in which ratio images are saved, or null,
+     * the default, to save them as floating point. The map is binned from
+     * the ratios before they are encoded, so only the saved images are
+     * affected, each ratio to within {@link RatioEncoding#getMaxError()}.
+     */
+    public void setRatioEncoding(RatioEncoding ratioEncoding) {
+        this.ratioEncoding = ratioEncoding;
+    }
+
+    /**
+     * Returns the stage timings of the most recent analysis.
+     */
+    public AnalysisMetrics getMetrics() {
+        return metrics;
+    }
+
+    boolean isSaveEDM() {
+        return saveEDM;
+    }
+
+    double getTimeRes() {
+        return timeRes;
+    }
+
+    double getSigBlurRadius() {
+        return sigBlurRadius;
+    }
+
+    ResultWriter getResultWriter() {
+        return resultWriter;
+    }
+
+    void startMetrics(ImageStack input, FrameExecutor executor) {
+        metrics = new AnalysisMetrics(executor.getParallelism());
+        metrics.setInput(input.size(), input.getWidth(), input.getHeight());
+    }
+
+    void finishMetrics(String resultsDir, long start) throws IOException {
+        metrics.recordWall("Total", start);
+        metrics.write(new File(resultsDir, AnalysisMetrics.FILENAME));
+        if (logMetrics) {
+            metrics.log();
+        }
+    }
+
+    private Checkpoint openCheckpoint(String mode, ImageStack stack1, ImageStack stack2, String resultsDir) throws IOException {
+        if (!checkpointing) {
+            return null;
+        }
+        return Checkpoint.open(resultsDir, getCheckpointKey(mode, stack1, stack2));
+    }
+
+    private String getCheckpointKey(String mode, ImageStack stack1, ImageStack stack2) {
+        return Checkpoint.makeKey(mode + ";" + describeParameters(), stack1, stack2);
+    }
+
+    /**
+     * Fills in the rows of the frames recorded in the checkpoint whose ratio
+     * images are still in the output.tif left by the earlier run.
+     *
+     * @return the number of frames that need not be analysed again
+     */
+    private int resumeRatio(Checkpoint checkpoint, ImageStack like, String resultsDir, double[][] data) {
+        int resumed = Math.min(checkpoint.getCompletedFrames(), TiffStackWriter.countFrames(new File(resultsDir, "output.tif"),
+                like.getWidth(), like.getHeight(), getRatioBitDepth()));
+        for (int i = 1; i <= resumed; i++) {
+            data[i - 1] = checkpoint.getFrame(i).row;
+        }
+        if (resumed > 0 && resumed < data.length) {
+            IJ.log(String.format("Resuming from frame %d of %d.", resumed + 1, data.length));
+        }
+        return resumed;
+    }
+
+    /**
+     * Returns every parameter that affects the results, for checking that
+     * partial results come from the same analysis.
+     */
+    String describeParameters() {
+        return String.format("%s;%d;%s;%s;%s;%s;%s;%s;%s;%s;%s;%s", threshMethod, holeSize, maskBlurRadius,
+                sigBlurRadius, spatialRes, timeRes, threshold, mapStatistic, describeRatio(), compactEDM, ratioEncoding,
+                recursiveGaussian);
+    }
+
+    private String describeRatio() {
+        return String.format("%s;%s;%s;%s;%s", background1, background2, rollingBallRadius, maskGated,
+                divideByZeroValue != null ? divideByZeroValue : FloatBlitter.divideByZeroValue);
+    }
+
+    /**
+     * Reopens distance maps saved by an earlier run, or returns null if they
+     * cannot be used.
+     */
+    private ImageStack loadEDMStack(ImageStack input, File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            ImageStack edm = MappedTiffStack.openStack(file);
+            if (edm.size() == input.size() && edm.getWidth() == input.getWidth()
+                    && edm.getHeight() == input.getHeight() && (edm.getBitDepth() == 32 || edm.getBitDepth() == 16)) {
+                return edm;
+            }
+        } catch (IOException e) {
+            IJ.log(e.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Opens cached distance maps, first copying them into the results
+     * directory if the distance maps are saved, or returns null if there are
+     * none.
+     *
+     * @param maxima receives the maximum distance in each frame
+     */
+    private ImageStack loadCachedEDM(String key, ImageStack input, String resultsDir, float[] maxima) {
+        File entry = stageCache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        long bytes = AnalysisMetrics.allocatedBytes();
+        try {
+            float[] cached = StageCache.readFloats(new File(entry, "maxima.bin"));
+            if (cached.length != maxima.length) {
+                return null;
+            }
+            File file = new File(entry, "EDM.tif");
+            if (saveEDM) {
+                File saved = new File(resultsDir, "EDM.tif");
+                Files.copy(file.toPath(), saved.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                file = saved;
+            }
+            ImageStack edm = loadEDMStack(input, file);
+            if (edm != null) {
+                System.arraycopy(cached, 0, maxima, 0, maxima.length);
+                metrics.recordSerial("Load cached EDM", start, bytes);
+            }
+            return edm;
+        } catch (IOException e) {
+            IJ.log(String.format("Ignoring cached distance maps: %s", e));
+            return null;
+        }
+    }
+
+    private void cacheEDM(String key, String resultsDir, ImageStack edm, float[] maxima) {
+        try {
+            stageCache.put(key, entry -> {
+                if (saveEDM) {
+                    Files.copy(new File(resultsDir, "EDM.tif").toPath(), new File(entry, "EDM.tif").toPath());
                 } else {
-                    printer.print("not found");
+                    writeStack(edm, new File(entry, "EDM.tif"));
+                }
+                StageCache.writeFloats(new File(entry, "maxima.bin"), maxima);
+            });
+        } catch (IOException e) {
+            IJ.log(String.format("Failed to cache distance maps: %s", e));
+        }
+    }
+
+    /**
+     * Copies a cached ratio stack into the results directory and returns the
+     * cached distance-binned map, or returns null if there is none.
+     */
+    private double[][] loadCachedMap(String key, String resultsDir, boolean showResults) {
+        File entry = stageCache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        long bytes = AnalysisMetrics.allocatedBytes();
+        try {
+            double[][] rows = StageCache.readRows(new File(entry, "Map.bin"));
+            File output = new File(resultsDir, "output.tif");
+            Files.copy(new File(entry, "output.tif").toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            metrics.recordSerial("Load cached map", start, bytes);
+            if (showResults) {
+                showOutput(output);
+            }
+            return rows;
+        } catch (IOException e) {
+            IJ.log(String.format("Ignoring cached map: %s", e));
+            return null;
+        }
+    }
+
+    private void cacheMap(String key, String resultsDir, double[][] data) {
+        try {
+            stageCache.put(key, entry -> {
+                Files.copy(new File(resultsDir, "output.tif").toPath(), new File(entry, "output.tif").toPath());
+                StageCache.writeRows(new File(entry, "Map.bin"), data);
+            });
+        } catch (IOException e) {
+            IJ.log(String.format("Failed to cache map: %s", e));
+        }
+    }
+
+    /**
+     * Returns the cheapest description of an input that a cache key can be
+     * made from: the file a mapped input is read from, which is trusted
+     * without reading any pixels, or else a hash of every pixel.
+     */
+    private String describeInput(ImageStack input, FrameExecutor executor) {
+        String description = StageCache.describeFile(input);
+        if (description != null) {
+            return description;
+        }
+        long start = System.nanoTime();
+        startStage("Hashing", input.size());
+        String hash = StageCache.hashStack(input, executor);
+        metrics.recordWall("Hash input", start);
+        return hash;
+    }
+
+    FrameExecutor createExecutor() {
+        FrameExecutor executor = pool != null ? new FrameExecutor(pool) : new FrameExecutor(parallelism);
+        executor.setMonitor(monitor);
+        return executor;
+    }
+
+    void startStage(String stage, int frames) {
+        if (monitor != null) {
+            monitor.startStage(stage, frames);
+        }
+    }
+
+    /**
+     * Asks the user for an output directory and creates a results directory
+     * within it.
+     *
+     * @return the results directory, or null if none could be created
+     */
+    public String openResultsDirectory() {
+        return openResultsDirectory(null, null, false);
+    }
+
+    /**
+     * As above, but if checkpointing is enabled and the output directory
+     * already holds a results directory with a checkpoint of the same
+     * analysis of these stacks, the most recent such directory is returned
+     * instead, so that the analysis resumes there.
+     *
+     * @param streaming true if the stacks will be passed to
+     * {@link #analyseStreaming}, false for {@link #analyse}
+     */
+    public String openResultsDirectory(ImageStack stack1, ImageStack stack2, boolean streaming) {
+        try {
+            String parent = (Utilities.getFolder(new File(IJ.getDirectory("current")),
+                    "Specify directory for output files...",
+                    true)).getAbsolutePath();
+            if (checkpointing && stack1 != null) {
+                File previous = findCheckpoint(new File(parent), getCheckpointKey(streaming ? "streaming" : "analyse", stack1, stack2));
+                if (previous != null) {
+                    IJ.log(String.format("Resuming the analysis in %s", previous.getAbsolutePath()));
+                    return previous.getAbsolutePath();
+                }
+            }
+            return GenUtils.openResultsDirectory(String.format("%s%s%s", parent, File.separator, title));
+        } catch (Exception e) {
+            GenUtils.error(e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the results directory within parent most recently
+     * checkpointed with the specified key, or null if there is none.
+     */
+    private File findCheckpoint(File parent, String key) {
+        File[] dirs = parent.listFiles(dir -> dir.isDirectory() && dir.getName().startsWith(title) && Checkpoint.exists(dir, key));
+        File latest = null;
+        for (int i = 0; dirs != null && i < dirs.length; i++) {
+            if (latest == null || new File(dirs[i], Checkpoint.FILENAME).lastModified() > new File(latest, Checkpoint.FILENAME).lastModified()) {
+                latest = dirs[i];
+            }
+        }
+        return latest;
+    }
+
+    void saveMap(double[][] data, String resultsDir) throws IOException {
+        saveMap(data, 0, resultsDir);
+    }
+
+    /**
+     * @param firstFrame index of the frame corresponding to the first row,
+     * from which times are calculated
+     */
+    void saveMap(double[][] data, int firstFrame, String resultsDir) throws IOException {
+        long start = System.nanoTime();
+        long bytes = AnalysisMetrics.allocatedBytes();
+        double[][] smoothedData = recursiveGaussian ? new RecursiveGaussian(sigBlurRadius).blur(data)
+                : PeakFinder.smoothData2D(data, sigBlurRadius);
+        metrics.recordSerial("Smoothing", start, bytes);
+        start = System.nanoTime();
+        bytes = AnalysisMetrics.allocatedBytes();
+        resultWriter.write(resultsDir, "Map", null, smoothedData, "NaN");
+        metrics.recordSerial("Write Map", start, bytes);
+        start = System.nanoTime();
+        bytes = AnalysisMetrics.allocatedBytes();
+        plotProfilePoints(smoothedData, firstFrame, resultsDir);
+        metrics.recordSerial("Write ProfilePoints", start, bytes);
+    }
+
+    /**
+     * Opens a stack writer for the results directory whose queue holds one
+     * frame per thread.
+     */
+    TiffStackWriter openWriter(String resultsDir, String name, int bitDepth, ImageStack like, FrameExecutor executor) throws IOException {
+        return new TiffStackWriter(new File(resultsDir, name), like.getWidth(), like.getHeight(), bitDepth, executor.getParallelism());
+    }
+
+    /**
+     * Opens output.tif for ratio images in this analyser's encoding.
+     */
+    TiffStackWriter openRatioWriter(String resultsDir, ImageStack like, FrameExecutor executor) throws IOException {
+        return openRatioWriter(resultsDir, like, executor, 0);
+    }
+
+    /**
+     * As above, but keeps the first resumed frames of an existing
+     * output.tif.
+     */
+    TiffStackWriter openRatioWriter(String resultsDir, ImageStack like, FrameExecutor executor, int resumed) throws IOException {
+        TiffStackWriter writer = new TiffStackWriter(new File(resultsDir, "output.tif"), like.getWidth(), like.getHeight(),
+                getRatioBitDepth(), executor.getParallelism(), resumed);
+        if (ratioEncoding != null) {
+            ratioEncoding.calibrate(writer);
+        }
+        return writer;
+    }
+
+    private int getRatioBitDepth() {
+        return ratioEncoding != null ? 16 : 32;
+    }
+
+    /**
+     * Opens EDM.tif for distance maps as made by {@link #toEDMProcessor}.
+     */
+    TiffStackWriter openEDMWriter(String resultsDir, ImageStack like, FrameExecutor executor) throws IOException {
+        return openWriter(resultsDir, "EDM.tif", compactEDM ? 16 : 32, like, executor);
+    }
+
+    /**
+     * Waits for the writer to finish, recording the time spent waiting,
+     * which is the part of the write that did not overlap computation.
+     *
+     * @param failure the exception that ended the stage early, if any, to
+     * which a failure to close is added as suppressed rather than thrown, so
+     * that the original cause is not lost
+     */
+    void closeWriter(TiffStackWriter writer, String stage, Throwable failure) throws IOException {
+        if (writer == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        long bytes = AnalysisMetrics.allocatedBytes();
+        try {
+            writer.close();
+        } catch (IOException | RuntimeException e) {
+            if (failure == null) {
+                throw e;
+            }
+            failure.addSuppressed(e);
+        }
+        metrics.recordSerial(stage, start, bytes);
+    }
+
+    static void writeStack(ImageStack stack, File file) throws IOException {
+        try (TiffStackWriter writer = new TiffStackWriter(file, stack.getWidth(), stack.getHeight(), stack.getBitDepth(), 1)) {
+            for (int i = 1; i <= stack.size(); i++) {
+                writer.write(MappedTiffStack.getPixelData(stack, i));
+            }
+        }
+    }
+
+    /**
+     * Displays the saved ratio images with the 16 colours LUT, calibrated if
+     * they are encoded.
+     */
+    void showOutput(File file) throws IOException {
+        ImageStack stack = MappedTiffStack.openStack(file);
+        ImagePlus outputImp = new ImagePlus("Ratiometric Output", stack);
+        RatioEncoding encoding = stack instanceof MappedTiffStack
+                ? RatioEncoding.fromDescription(((MappedTiffStack) stack).getDescription()) : null;
+        if (encoding != null) {
+            encoding.calibrate(outputImp);
+        }
+        outputImp.resetDisplayRange();
+        LUT sixteenColors;
+        if (IJ.getInstance() != null) {
+            sixteenColors = LutLoader.openLut(String.format("%s%s%s%s", IJ.getDirectory("imagej"), "luts", File.separator, "16_colors.lut"));
+        } else {
+            sixteenColors = LutLoader.openLut("C:\\Users\\barryd\\FIJI\\DEV\\Fiji.app\\luts\\16_colors.lut");
+        }
+        if (sixteenColors != null) {
+            outputImp.setLut(sixteenColors);
+        }
+        outputImp.show();
+    }
+
+    void saveFrame(ImageProcessor frame, File dir, String name, int index) {
+        saveFrame(new ImagePlus(name, frame), dir, name, index);
+    }
+
+    /**
+     * Saves a ratio image, as returned by {@link #processFrame}, with the
+     * calibration of this analyser's encoding.
+     */
+    void saveRatioFrame(ImageProcessor ratio, File dir, int index) {
+        ImagePlus imp = new ImagePlus("output", ratio);
+        if (ratioEncoding != null) {
+            ratioEncoding.calibrate(imp);
+        }
+        saveFrame(imp, dir, "output", index);
+    }
+
+    private void saveFrame(ImagePlus imp, File dir, String name, int index) {
+        String path = String.format("%s%s%s_%05d.tif", dir.getAbsolutePath(), File.separator, name, index);
+        new FileSaver(imp).saveAsTiff(path);
+    }
+
+    /**
+     * Runs the whole per-frame pipeline - segmentation, EDM, ratio and
+     * distance binning - on a single pair of frames. If ratios are encoded,
+     * the ratio image is returned encoded, so the floating-point image is
+     * not kept once the frame is binned.
+     */
+    FrameResult processFrame(ImageProcessor slice1, Object pix2) {
+        int width = slice1.getWidth();
+        int height = slice1.getHeight();
+        long start = System.nanoTime();
+        long bytes = AnalysisMetrics.allocatedBytes();
+        ImageProcessor binary = segment(slice1);
+        metrics.recordFrame("Segmentation", start, bytes);
+        start = System.nanoTime();
+        bytes = AnalysisMetrics.allocatedBytes();
+        DistanceTransform transform = distanceTransform(binary);
+        ImageProcessor edm = toEDMProcessor(transform);
+        metrics.recordFrame("EDM", start, bytes);
+        start = System.nanoTime();
+        bytes = AnalysisMetrics.allocatedBytes();
+        float[] ratio = new float[width * height];
+        double[] profile = new double[Math.round(transform.getMax()) + 1];
+        binFrame(slice1.getPixels(), pix2, edm.getPixels(), width, height, ratio, profile);
+        metrics.recordFrame("Ratio", start, bytes);
+        start = System.nanoTime();
+        bytes = AnalysisMetrics.allocatedBytes();
+        BitMask mask = BitMask.fromDistanceMap(edm.getPixels(), width, height);
+        metrics.recordFrame("Masks", start, bytes);
+        ImageProcessor ratioImage = ratioEncoding != null ? new ShortProcessor(width, height, ratioEncoding.encode(ratio), null)
+                : new FloatProcessor(width, height, ratio);
+        return new FrameResult(ratioImage, edm, transform.getMax(), mask, profile);
+    }
+
+    /**
+     * Records the wall time of a parallel run of {@link #processFrame}
+     * against each of its steps. The steps of a frame run one after another
+     * on the same thread, so each one delivers frames at the rate of the run
+     * as a whole.
+     */
+    void recordFrameWall(long startNanos) {
+        for (String stage : new String[]{"Segmentation", "EDM", "Ratio", "Masks"}) {
+            metrics.recordWall(stage, startNanos);
+        }
+    }
+
+    /**
+     * Segments a single frame and returns its mask, as built by
+     * {@link #processFrame}.
+     */
+    BitMask makeMask(ImageProcessor slice) {
+        return BitMask.fromDistanceMap(distanceTransform(segment(slice)).getDistances(), slice.getWidth(), slice.getHeight());
+    }
+
+    /**
+     * Blurs and thresholds a single frame with this analyser's parameters,
+     * blurring in bands if tiling is enabled.
+     */
+    ImageProcessor segment(ImageProcessor slice) {
+        if (tileRows > 0) {
+            return thresholdProcessor(new RecursiveGaussian(maskBlurRadius).blurTiles(slice, tileRows), threshMethod, holeSize);
+        }
+        return makeBinaryProcessor(slice, maskBlurRadius, threshMethod, holeSize, recursiveGaussian);
+    }
+
+    /**
+     * Returns a distance map as a 16-bit image if distance maps are compact,
+     * or else as a floating-point image.
+     */
+    ImageProcessor toEDMProcessor(DistanceTransform transform) {
+        return compactEDM ? transform.toShortProcessor() : transform.toFloatProcessor();
+    }
+
+    /**
+     * Computes the distance map of a binary frame, in bands if tiling is
+     * enabled.
+     */
+    DistanceTransform distanceTransform(ImageProcessor binary) {
+        return tileRows > 0 ? DistanceTransform.compute(binary, tileRows, expectedMaxDistance) : DistanceTransform.compute(binary);
+    }
+
+    static class FrameResult {
+
+        final ImageProcessor ratio, edm;
+        final float edmMax;
+        final BitMask mask;
+        final double[] distanceProfile;
+
+        FrameResult(ImageProcessor ratio, ImageProcessor edm, float edmMax, BitMask mask, double[] distanceProfile) {
+            this.ratio = ratio;
+            this.edm = edm;
+            this.edmMax = edmMax;
+            this.mask = mask;
+            this.distanceProfile = distanceProfile;
+        }
+    }
+
+    /**
+     * Blurs and thresholds every frame of a copy of the input.
+     */
+    public static ImageStack makeBinaryStack(ImageStack input, double maskBlurRadius, String threshMethod, int holeSize) {
+        return makeBinaryStack(input, maskBlurRadius, threshMethod, holeSize, false);
+    }
+
+    /**
+     * As above, blurring with {@link RecursiveGaussian} if recursiveGaussian
+     * is set, or else with ImageBlurrer.
+     */
+    public static ImageStack makeBinaryStack(ImageStack input, double maskBlurRadius, String threshMethod, int holeSize,
+            boolean recursiveGaussian) {
+        ImageStack blurred = input.duplicate();
+        if (recursiveGaussian) {
+            RecursiveGaussian gaussian = new RecursiveGaussian(maskBlurRadius);
+            for (int i = 1; i <= blurred.size(); i++) {
+                gaussian.blur(blurred.getProcessor(i));
+            }
+        } else {
+            ImageBlurrer.blurStack(blurred, maskBlurRadius);
+        }
+        return BinaryMaker.makeBinaryStack(new ImagePlus("", blurred), threshMethod, -1, holeSize);
+    }
+
+    /**
+     * Blurs and thresholds a single frame without modifying the input.
+     */
+    public static ImageProcessor makeBinaryProcessor(ImageProcessor input, double maskBlurRadius, String threshMethod, int holeSize) {
+        return makeBinaryProcessor(input, maskBlurRadius, threshMethod, holeSize, false);
+    }
+
+    public static ImageProcessor makeBinaryProcessor(ImageProcessor input, double maskBlurRadius, String threshMethod, int holeSize,
+            boolean recursiveGaussian) {
+        return thresholdProcessor(blurProcessor(input, maskBlurRadius, recursiveGaussian), threshMethod, holeSize);
+    }
+
+    /**
+     * Returns a blurred copy of the input.
+     */
+    public static ImageProcessor blurProcessor(ImageProcessor input, double maskBlurRadius) {
+        return blurProcessor(input, maskBlurRadius, false);
+    }
+
+    public static ImageProcessor blurProcessor(ImageProcessor input, double maskBlurRadius, boolean recursiveGaussian) {
+        if (recursiveGaussian) {
+            ImageProcessor blurred = input.duplicate();
+            new RecursiveGaussian(maskBlurRadius).blur(blurred);
+            return blurred;
+        }
+        ImageStack stack = makeSingleSliceStack(input.duplicate());
+        ImageBlurrer.blurStack(stack, maskBlurRadius);
+        return stack.getProcessor(1);
+    }
+
+    public static ImageProcessor thresholdProcessor(ImageProcessor blurred, String threshMethod, int holeSize) {
+        return BinaryMaker.makeBinaryStack(new ImagePlus("", makeSingleSliceStack(blurred)), threshMethod, -1, holeSize).getProcessor(1);
+    }
+
+    static ImageStack makeSingleSliceStack(ImageProcessor slice) {
+        ImageStack stack = new ImageStack(slice.getWidth(), slice.getHeight());
+        stack.addSlice(slice);
+        return stack;
+    }
+
+    static ImageStack makeStack(ImageProcessor[] slices, int width, int height) {
+        ImageStack stack = new ImageStack(width, height);
+        for (ImageProcessor slice : slices) {
+            stack.addSlice(slice);
+        }
+        return stack;
+    }
+
+    /**
+     * Segments each frame and computes its distance map. Frames are processed
+     * one chunk at a time: the chunk is segmented, then its distance maps are
+     * computed, so each step has its own wall time and only one chunk of
+     * binary images is held at once. If the distance maps are saved, each
+     * chunk is written to EDM.tif before the next is processed.
+     *
+     * @param maxima receives the maximum distance in each frame
+     */
+    ImageStack makeEDMStack(ImageStack input, String directory, FrameExecutor executor, float[] maxima) throws IOException {
+        int n = input.size();
+        final ImageProcessor[] edms = new ImageProcessor[n];
+        int chunkSize = executor.getParallelism();
+        final ImageProcessor[] binaries = new ImageProcessor[chunkSize];
+        TiffStackWriter writer = saveEDM ? openEDMWriter(directory, input, executor) : null;
+        startStage("Segmentation + EDM", 2 * n);
+        Throwable failure = null;
+        try {
+            for (int first = 1; first <= n; first += chunkSize) {
+                int last = Math.min(n, first + chunkSize - 1);
+                int offset = first;
+                long stageStart = System.nanoTime();
+                executor.run(first, last, i -> {
+                    long start = System.nanoTime();
+                    long bytes = AnalysisMetrics.allocatedBytes();
+                    binaries[i - offset] = segment(input.getProcessor(i));
+                    metrics.recordFrame("Segmentation", start, bytes);
+                });
+                metrics.recordWall("Segmentation", stageStart);
+                stageStart = System.nanoTime();
+                executor.run(first, last, i -> {
+                    long start = System.nanoTime();
+                    long bytes = AnalysisMetrics.allocatedBytes();
+                    DistanceTransform transform = distanceTransform(binaries[i - offset]);
+                    binaries[i - offset] = null;
+                    edms[i - 1] = toEDMProcessor(transform);
+                    maxima[i - 1] = transform.getMax();
+                    metrics.recordFrame("EDM", start, bytes);
+                });
+                metrics.recordWall("EDM", stageStart);
+                if (writer != null) {
+                    for (int i = first; i <= last; i++) {
+                        writer.write(edms[i - 1].getPixels());
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            closeWriter(writer, "Write EDM.tif", failure);
+        }
+        return makeStack(edms, input.getWidth(), input.getHeight());
+    }
+
+    static int getMaxDistance(float[] maxima) {
+        float max = 0.0f;
+        for (float m : maxima) {
+            max = Math.max(max, m);
+        }
+        return Math.round(max);
+    }
+
+    /**
+     * Computes the ratio of stack1 to stack2 and the map statistic at each
+     * distance from the cell edge in one pass per frame.
+     *
+     * @param stack1 numerator channel
+     * @param stack2 denominator channel
+     * @param edmStack distance maps
+     * @param maxDist largest distance, rounded, in any of the distance maps
+     * @param output stack to which ratio images are added, or null
+     * @param data receives the map statistic indexed by [frame][distance];
+     * rows that are null are allocated, with maxDist + 1 entries, before any
+     * frame is binned. If the analysis is cancelled, rows and ratio images
+     * are filled in for the frames completed up to the first incomplete frame
+     */
+    void indexWithDistanceMap(ImageStack stack1, ImageStack stack2, ImageStack edmStack, int maxDist, ImageStack output, double[][] data, FrameExecutor executor) {
+        try {
+            indexWithDistanceMap(stack1, stack2, edmStack, maxDist, output, null, data, executor, 1, null, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * As above, but if writer is set, frames are computed one chunk at a time
+     * and each chunk of ratio images is written, in this analyser's encoding,
+     * while the next is computed. Each ratio image is encoded as soon as its
+     * frame is binned, and the floating-point image is only kept if output
+     * is set.
+     *
+     * @param firstFrame the first frame to analyse; the rows of earlier
+     * frames must already be filled in and their ratio images, if there is a
+     * writer, already written
+     * @param checkpoint if set, each frame is recorded, with its maximum
+     * from maxima, once its ratio image has reached the writer's file, so
+     * that a run resumed from the first frame not recorded finds the ratio
+     * images of every recorded frame in place
+     */
+    void indexWithDistanceMap(ImageStack stack1, ImageStack stack2, ImageStack edmStack, int maxDist, ImageStack output,
+            TiffStackWriter writer, double[][] data, FrameExecutor executor, int firstFrame, Checkpoint checkpoint,
+            float[] maxima) throws IOException {
+        int n = stack1.size();
+        int width = stack1.getWidth();
+        int height = stack1.getHeight();
+        boolean keepRatio = output != null || writer != null;
+        int chunkSize = writer != null ? executor.getParallelism() : n;
+        for (int i = 0; i < n; i++) {
+            if (data[i] == null) {
+                data[i] = new double[maxDist + 1];
+            }
+        }
+        final BitMask[] masks = checkpoint != null ? new BitMask[n] : null;
+        int recorded = firstFrame - 1;
+        startStage("Ratio", n - firstFrame + 1);
+        long stageStart = System.nanoTime();
+        try {
+            for (int first = firstFrame; first <= n; first += chunkSize) {
+                final int chunkStart = first;
+                final int count = Math.min(n, first + chunkSize - 1) - first + 1;
+                final float[][] ratios = output != null ? new float[count][] : null;
+                final Object[] written = writer != null ? new Object[count] : null;
+                try {
+                    executor.run(first, first + count - 1, i -> {
+                        long start = System.nanoTime();
+                        long bytes = AnalysisMetrics.allocatedBytes();
+                        float[] ratio = keepRatio ? new float[width * height] : null;
+                        Object pix1 = MappedTiffStack.getPixelData(stack1, i);
+                        Object pix2 = MappedTiffStack.getPixelData(stack2, i);
+                        Object edmPix = edmStack.getPixels(i);
+                        binFrame(pix1, pix2, edmPix, width, height, ratio, data[i - 1]);
+                        if (masks != null) {
+                            masks[i - 1] = BitMask.fromDistanceMap(edmPix, width, height);
+                        }
+                        if (written != null) {
+                            written[i - chunkStart] = ratioEncoding != null ? ratioEncoding.encode(ratio) : ratio;
+                        }
+                        if (ratios != null) {
+                            ratios[i - chunkStart] = ratio;
+                        }
+                        metrics.recordFrame("Ratio", start, bytes);
+                    });
+                } finally {
+                    for (int i = 0; keepRatio && i < count && (ratios != null ? ratios[i] : written[i]) != null; i++) {
+                        if (ratios != null) {
+                            output.addSlice(new FloatProcessor(width, height, ratios[i]));
+                        }
+                        if (written != null) {
+                            writer.write(written[i]);
+                        }
+                    }
+                    // Frames still queued are recorded after a later chunk
+                    if (checkpoint != null) {
+                        for (int durable = writer.getWrittenCount(); recorded < durable; recorded++) {
+                            checkpoint.writeFrame(recorded + 1, maxima[recorded], masks[recorded], Double.NaN, data[recorded]);
+                            masks[recorded] = null;
+                        }
+                        checkpoint.flush();
+                    }
                 }
             }
-            if (indices[0] >= 0 && indices[1] >= 0) {
-                printer.print((indices[1] - indices[0]) * spatialRes);
+        } finally {
+            metrics.recordWall("Ratio", stageStart);
+        }
+    }
+
+    /**
+     * Bins one frame by distance using this thread's kernel and accumulator,
+     * writing the map statistic for each distance into row, whose length
+     * sets the number of distances binned.
+     */
+    void binFrame(Object pix1, Object pix2, Object edmPix, int width, int height, float[] ratio, double[] row) {
+        pix1 = subtractBackground(pix1, width, height);
+        pix2 = subtractBackground(pix2, width, height);
+        if (tileRows > 0 && height > tileRows && mapStatistic != DistanceBinAccumulator.Statistic.MEDIAN) {
+            DistanceBinAccumulator[] tiles = binTiles(pix1, pix2, edmPix, width, height, ratio, row.length);
+            // The thread's own accumulator is only taken once the bands are
+            // joined, as this thread may run other frames while it waits
+            DistanceBinAccumulator bins = getAccumulator(row.length);
+            for (DistanceBinAccumulator tile : tiles) {
+                bins.merge(tile);
+                tilePool.add(tile);
             }
-            printer.println();
+            bins.toRow(mapStatistic, row);
+            return;
         }
-        printer.close();
+        DistanceBinAccumulator bins = getAccumulator(row.length);
+        getKernel(width).process(pix1, pix2, edmPix, height, ratio, bins);
+        bins.toRow(mapStatistic, row);
+    }
+
+    /**
+     * Bins each band of tileRows rows into an accumulator of its own, in
+     * parallel. Median estimates cannot be merged, so the median map is
+     * always binned over the whole frame. The accumulators are taken from a
+     * shared pool, to which the caller returns them once merged.
+     */
+    private DistanceBinAccumulator[] binTiles(Object pix1, Object pix2, Object edmPix, int width, int height, float[] ratio, int bins) {
+        DistanceBinAccumulator[] tiles = new DistanceBinAccumulator[(height + tileRows - 1) / tileRows];
+        SpanSplitter.forEachSpan(tiles.length, 1, (firstTile, lastTile) -> {
+            for (int t = firstTile; t < lastTile; t++) {
+                DistanceBinAccumulator tile = tilePool.poll();
+                tiles[t] = tile != null ? tile : new DistanceBinAccumulator();
+                tiles[t].reset(bins);
+                getKernel(width).processRows(pix1, pix2, edmPix, t * tileRows, Math.min(height, (t + 1) * tileRows), ratio, tiles[t]);
+            }
+            return 0.0f;
+        });
+        return tiles;
     }
 
-    private double[] estimateVelocity(ImageStack edm) {
-        ImageStack binaryStack = BinaryMaker.makeBinaryStack(new ImagePlus("", edm.duplicate()), null, 1, holeSize);
-        int size = binaryStack.size();
+    /**
+     * Returns a copy of one channel of a frame with its rolling-ball
+     * background subtracted, or the pixels themselves if there is no rolling
+     * ball. Constant backgrounds are subtracted by the kernel.
+     */
+    Object subtractBackground(Object pixels, int width, int height) {
+        if (rollingBallRadius <= 0.0) {
+            return pixels;
+        }
+        float[] copy = new float[width * height];
+        float[] row = new float[width];
+        for (int y = 0; y < height; y++) {
+            RatioKernel.getRow(pixels, y * width, width, row);
+            System.arraycopy(row, 0, copy, y * width, width);
+        }
+        new BackgroundSubtracter().rollingBallBackground(new FloatProcessor(width, height, copy),
+                rollingBallRadius, false, false, false, true, true);
+        return copy;
+    }
+
+    /**
+     * As {@link #binFrame}, but for the pixels of a single labelled object.
+     */
+    void binObject(Object pix1, Object pix2, float[] edm, int[] labels, int label, int[] bounds, int width, double[] row) {
+        DistanceBinAccumulator bins = getAccumulator(row.length);
+        getKernel(width).processObject(pix1, pix2, edm, labels, label, bounds, bins);
+        bins.toRow(mapStatistic, row);
+    }
+
+    /**
+     * Returns the map statistic of a distance bin containing no pixels, with
+     * which rows binned to a smaller maximum distance can be padded.
+     */
+    double getEmptyBinValue() {
+        return getAccumulator(1).get(mapStatistic, 0);
+    }
+
+    private RatioKernel getKernel(int width) {
+        RatioKernel kernel = kernels.get();
+        if (kernel == null || kernel.getWidth() != width) {
+            kernel = new RatioKernel(width);
+            kernels.set(kernel);
+        }
+        kernel.setBackground((float) background1, (float) background2);
+        kernel.setDivideByZeroValue(divideByZeroValue);
+        kernel.setMaskGated(maskGated);
+        return kernel;
+    }
+
+    private DistanceBinAccumulator getAccumulator(int bins) {
+        boolean quantiles = mapStatistic == DistanceBinAccumulator.Statistic.MEDIAN;
+        DistanceBinAccumulator accumulator = accumulators.get();
+        if (accumulator == null || accumulator.hasQuantiles() != quantiles) {
+            accumulator = quantiles ? new DistanceBinAccumulator(new double[]{0.5}) : new DistanceBinAccumulator();
+            accumulators.set(accumulator);
+        }
+        accumulator.reset(bins);
+        return accumulator;
+    }
+
+    void plotProfilePoints(double[][] smoothedData, String dir) throws IOException {
+        plotProfilePoints(smoothedData, 0, dir);
+    }
+
+    void plotProfilePoints(double[][] smoothedData, int firstFrame, String dir) throws IOException {
+        double[][] rows = new double[smoothedData.length][];
+        double[] extrema = PeakFinder.findMinAndMax(smoothedData);
+        for (int i = 0; i < smoothedData.length; i++) {
+            rows[i] = findProfilePoints(smoothedData[i], firstFrame + i, extrema[0], extrema[1]);
+        }
+        resultWriter.write(dir, "ProfilePoints", getProfilePointHeadings(), rows, "not found");
+    }
+
+    /**
+     * Returns the time, the edges of the region above threshold and, if both
+     * edges are found, its width. Edges that are not found are NaN.
+     */
+    double[] findProfilePoints(double[] smoothedRow, int frame, double min, double max) {
+        int[] indices = PeakFinder.findRegionWidth(smoothedRow, threshold, min, max);
+        boolean found = indices[0] >= 0 && indices[1] >= 0;
+        double[] row = new double[found ? indices.length + 2 : indices.length + 1];
+        row[0] = frame * timeRes;
+        for (int j = 0; j < indices.length; j++) {
+            row[j + 1] = indices[j] >= 0 ? indices[j] * spatialRes : Double.NaN;
+        }
+        if (found) {
+            row[row.length - 1] = (indices[1] - indices[0]) * spatialRes;
+        }
+        return row;
+    }
+
+    String[] getProfilePointHeadings() {
+        return new String[]{"Time (s)", "x1 " + um, "x2 " + um, "Width " + um};
+    }
+
+    String[] getVelocityHeadings() {
+        return new String[]{"Time (s)", String.format("Instantaneous Velocity (%s/s)", um)};
+    }
+
+    double[] estimateVelocity(ImageStack edm, FrameExecutor executor) {
+        int size = edm.size();
+        final BitMask[] masks = new BitMask[size];
+        startStage("Velocity", 2 * size - 2);
         double[] vels = new double[size];
+        long stageStart = System.nanoTime();
+        try {
+            executor.run(1, size, i -> {
+                long start = System.nanoTime();
+                long bytes = AnalysisMetrics.allocatedBytes();
+                masks[i - 1] = BitMask.fromDistanceMap(edm.getPixels(i), edm.getWidth(), edm.getHeight());
+                metrics.recordFrame("Masks", start, bytes);
+            });
+        } finally {
+            metrics.recordWall("Masks", stageStart);
+        }
+        stageStart = System.nanoTime();
+        try {
+            executor.run(2, size - 1, i -> {
+                long start = System.nanoTime();
+                long bytes = AnalysisMetrics.allocatedBytes();
+                vels[i - 1] = calcVelocity(masks[i - 2], masks[i], masks[i - 1].getPerimeter());
+                metrics.recordFrame("Velocity", start, bytes);
+            });
+        } finally {
+            metrics.recordWall("Velocity", stageStart);
+        }
+        return summariseVelocities(vels);
+    }
+
+    double calcVelocity(BitMask before, BitMask after, double perim) {
+        double area = BitMask.countDifference(before, after);
+        return (spatialRes * area) / (2.0 * perim * timeRes); // Divide by 2 because velocties are calculated over two frame intervals
+    }
+
+    double[] summariseVelocities(double[] vels) {
+        int size = vels.length;
         vels[0] = 0.0;
         SummaryStatistics stats = new SummaryStatistics();
         for (int i = 2; i <= size - 1; i++) {
-            ByteProcessor slice1 = (ByteProcessor) binaryStack.getProcessor(i - 1).duplicate();
-            ByteProcessor slice2 = (ByteProcessor) binaryStack.getProcessor(i + 1).duplicate();
-            ByteBlitter blitter = new ByteBlitter(slice2);
-            blitter.copyBits(slice1, 0, 0, Blitter.DIFFERENCE);
-            double area = slice2.getStatistics().histogram[255];
-            ImageProcessor edmslice = edm.getProcessor(i);
-            double perim = edmslice.getStatistics().histogram[1];
-            vels[i - 1] = (spatialRes * area) / (2.0 * perim * timeRes); // Divide by 2 because velocties are calculated over two frame intervals
             stats.addValue(vels[i - 1]);
         }
         vels[size - 1] = vels[size - 2];
@@ -215,12 +1446,26 @@ public class RatiometricAnalyser {
         return vels;
     }
 
-    private void plotVelocities(double[] velocities) {
+    void plotVelocities(double[] velocities, String dir, boolean showPlot) throws IOException {
+        plotVelocities(velocities, 0, dir, showPlot);
+    }
+
+    void plotVelocities(double[] velocities, int firstFrame, String dir, boolean showPlot) throws IOException {
         double[] timePoints = new double[velocities.length];
         for (int i = 0; i < velocities.length; i++) {
-            timePoints[i] = i * timeRes;
+            timePoints[i] = (firstFrame + i) * timeRes;
+        }
+        long start = System.nanoTime();
+        long bytes = AnalysisMetrics.allocatedBytes();
+        double[][] rows = new double[velocities.length][];
+        for (int i = 0; i < velocities.length; i++) {
+            rows[i] = new double[]{timePoints[i], velocities[i]};
+        }
+        resultWriter.write(dir, "Velocities", getVelocityHeadings(), rows, "NaN");
+        metrics.recordSerial("Write Velocities", start, bytes);
+        if (showPlot) {
+            Plot plot = new Plot("Instantaneous Velocities", "Time", "Instantaneous Velocity", timePoints, velocities);
+            plot.show();
         }
-        Plot plot = new Plot("Instantaneous Velocities", "Time", "Instantaneous Velocity", timePoints, velocities);
-        plot.show();
     }
 }
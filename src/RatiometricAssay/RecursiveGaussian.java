@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+/**
+ * Separable Gaussian blur by the third-order recursive filter of Young and
+ * van Vliet, applied forwards and then backwards along each row and column.
+ * The cost per pixel does not depend on sigma. Edge pixels are replicated
+ * beyond the image, with the backward pass initialised by the method of
+ * Triggs and Sdika so that the edges are not distorted.
+ *
+ * The recursive filter is only accurate for larger sigmas, so below
+ * {@link #MIN_RECURSIVE_SIGMA} a sampled kernel is convolved directly, which
+ * is cheap at those sizes.
+ *
+ * Large images can be blurred in bands of rows with {@link #blurTiles}, so
+ * that only one band at a time is held in floating point.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class RecursiveGaussian {
+
+    public static final double MIN_RECURSIVE_SIGMA = 2.0;
+    private final double sigma;
+    private final double a1, a2, a3, gain;
+    private final double[] m;
+    private final double[] kernel;
+    private final int halo;
+
+    public RecursiveGaussian(double sigma) {
+        this.sigma = sigma;
+        if (sigma >= MIN_RECURSIVE_SIGMA) {
+            double q = sigma >= 2.5 ? 0.98711 * sigma - 0.96330 : 3.97156 - 4.14554 * Math.sqrt(1.0 - 0.26891 * sigma);
+            double q2 = q * q;
+            double q3 = q2 * q;
+            double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+            a1 = (2.44413 * q + 2.85619 * q2 + 1.26661 * q3) / b0;
+            a2 = -(1.4281 * q2 + 1.26661 * q3) / b0;
+            a3 = 0.422205 * q3 / b0;
+            double b = 1.0 - a1 - a2 - a3;
+            gain = b * b;
+            m = makeBoundaryMatrix(a1, a2, a3);
+            kernel = null;
+            halo = getImpulseLength(a1, a2, a3);
+        } else {
+            a1 = a2 = a3 = gain = 0.0;
+            m = null;
+            kernel = makeKernel(sigma);
+            halo = kernel.length - 1;
+        }
+    }
+
+    public double getSigma() {
+        return sigma;
+    }
+
+    /**
+     * Returns the number of rows beyond a band that {@link #blurTiles} reads:
+     * the kernel radius, or, for the recursive filter, the distance beyond
+     * which its impulse response is below 1e-9 of its peak.
+     */
+    public int getHalo() {
+        return halo;
+    }
+
+    /**
+     * Blurs a row-major array of pixels in place. Rows, then columns, are
+     * split across the fork-join pool when called from one.
+     */
+    public void blur(float[] pixels, int width, int height) {
+        if (sigma <= 0.0) {
+            return;
+        }
+        SpanSplitter.forEachSpan(height, (first, last) -> {
+            double[] line = new double[width];
+            double[] scratch = new double[width + 3];
+            for (int y = first; y < last; y++) {
+                int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    line[x] = pixels[offset + x];
+                }
+                blurLine(line, width, scratch);
+                for (int x = 0; x < width; x++) {
+                    pixels[offset + x] = (float) line[x];
+                }
+            }
+            return 0.0f;
+        });
+        SpanSplitter.forEachSpan(width, (first, last) -> {
+            double[] line = new double[height];
+            double[] scratch = new double[height + 3];
+            for (int x = first; x < last; x++) {
+                for (int y = 0; y < height; y++) {
+                    line[y] = pixels[y * width + x];
+                }
+                blurLine(line, height, scratch);
+                for (int y = 0; y < height; y++) {
+                    pixels[y * width + x] = (float) line[y];
+                }
+            }
+            return 0.0f;
+        });
+    }
+
+    /**
+     * Blurs an 8-, 16- or 32-bit image in place. Integer types are rounded
+     * and clamped, as in ImageJ's Gaussian blur.
+     */
+    public void blur(ImageProcessor ip) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        Object pixels = ip.getPixels();
+        if (pixels instanceof float[]) {
+            blur((float[]) pixels, width, height);
+            return;
+        }
+        float[] values = new float[width * height];
+        float[] row = new float[width];
+        for (int y = 0; y < height; y++) {
+            RatioKernel.getRow(pixels, y * width, width, row);
+            System.arraycopy(row, 0, values, y * width, width);
+        }
+        blur(values, width, height);
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int i = 0; i < p.length; i++) {
+                p[i] = (byte) Math.max(0, Math.min(255, Math.round(values[i])));
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int i = 0; i < p.length; i++) {
+                p[i] = (short) Math.max(0, Math.min(65535, Math.round(values[i])));
+            }
+        } else {
+            throw new IllegalArgumentException("Only 8-, 16- and 32-bit greyscale images are supported.");
+        }
+    }
+
+    /**
+     * Returns a blurred copy of an 8-, 16- or 32-bit image, computed in bands
+     * of tileRows rows, in parallel when called from the fork-join pool. Each
+     * band is blurred together with {@link #getHalo()} rows either side of
+     * it, so that no floating-point copy of the whole image is needed. With
+     * the sampled kernel the result is identical to
+     * {@link #blur(ImageProcessor)}; with the recursive filter it differs by
+     * no more than the response truncated at the halo.
+     */
+    public ImageProcessor blurTiles(ImageProcessor input, int tileRows) {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        Object pixels = input.getPixels();
+        ImageProcessor output = input.createProcessor(width, height);
+        Object dest = output.getPixels();
+        if (sigma <= 0.0) {
+            System.arraycopy(pixels, 0, dest, 0, width * height);
+            return output;
+        }
+        int rows = Math.max(1, Math.min(height, tileRows));
+        int tiles = (height + rows - 1) / rows;
+        SpanSplitter.forEachSpan(tiles, 1, (firstTile, lastTile) -> {
+            int maxRows = Math.min(height, rows + 2 * halo);
+            float[] values = new float[width * maxRows];
+            float[] row = new float[width];
+            double[] line = new double[Math.max(width, maxRows)];
+            double[] scratch = new double[line.length + 3];
+            for (int t = firstTile; t < lastTile; t++) {
+                int first = t * rows;
+                int last = Math.min(height, first + rows);
+                int top = Math.max(0, first - halo);
+                int n = Math.min(height, last + halo) - top;
+                for (int y = 0; y < n; y++) {
+                    RatioKernel.getRow(pixels, (top + y) * width, width, row);
+                    for (int x = 0; x < width; x++) {
+                        line[x] = row[x];
+                    }
+                    blurLine(line, width, scratch);
+                    for (int x = 0; x < width; x++) {
+                        values[y * width + x] = (float) line[x];
+                    }
+                }
+                for (int x = 0; x < width; x++) {
+                    for (int y = 0; y < n; y++) {
+                        line[y] = values[y * width + x];
+                    }
+                    blurLine(line, n, scratch);
+                    for (int y = first - top; y < last - top; y++) {
+                        values[y * width + x] = (float) line[y];
+                    }
+                }
+                for (int y = first; y < last; y++) {
+                    putRow(values, (y - top) * width, dest, y * width, width);
+                }
+            }
+            return 0.0f;
+        });
+        return output;
+    }
+
+    /**
+     * Copies one row of blurred values into an 8-, 16- or 32-bit pixel
+     * array, rounding and clamping as {@link #blur(ImageProcessor)} does.
+     */
+    private static void putRow(float[] values, int offset, Object pixels, int destOffset, int width) {
+        if (pixels instanceof float[]) {
+            System.arraycopy(values, offset, pixels, destOffset, width);
+        } else if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int x = 0; x < width; x++) {
+                p[destOffset + x] = (byte) Math.max(0, Math.min(255, Math.round(values[offset + x])));
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int x = 0; x < width; x++) {
+                p[destOffset + x] = (short) Math.max(0, Math.min(65535, Math.round(values[offset + x])));
+            }
+        } else {
+            throw new IllegalArgumentException("Only 8-, 16- and 32-bit greyscale images are supported.");
+        }
+    }
+
+    /**
+     * Returns a blurred copy of a rectangular array, such as a map indexed
+     * by [time][distance]. The map is filtered in double precision
+     * throughout, so it loses nothing to rounding beyond the filter itself.
+     */
+    public double[][] blur(double[][] data) {
+        int rows = data.length;
+        int columns = rows > 0 ? data[0].length : 0;
+        double[][] result = new double[rows][];
+        for (int i = 0; i < rows; i++) {
+            result[i] = Arrays.copyOf(data[i], columns);
+        }
+        if (sigma <= 0.0) {
+            return result;
+        }
+        SpanSplitter.forEachSpan(rows, (first, last) -> {
+            double[] scratch = new double[columns + 3];
+            for (int i = first; i < last; i++) {
+                blurLine(result[i], columns, scratch);
+            }
+            return 0.0f;
+        });
+        SpanSplitter.forEachSpan(columns, (first, last) -> {
+            double[] line = new double[rows];
+            double[] scratch = new double[rows + 3];
+            for (int j = first; j < last; j++) {
+                for (int i = 0; i < rows; i++) {
+                    line[i] = result[i][j];
+                }
+                blurLine(line, rows, scratch);
+                for (int i = 0; i < rows; i++) {
+                    result[i][j] = line[i];
+                }
+            }
+            return 0.0f;
+        });
+        return result;
+    }
+
+    /**
+     * Blurs the first n values of a line in place.
+     *
+     * @param scratch at least n + 3 values
+     */
+    void blurLine(double[] line, int n, double[] scratch) {
+        if (n < 1) {
+            return;
+        }
+        if (kernel != null) {
+            convolveLine(line, n, scratch);
+            return;
+        }
+        double first = line[0];
+        double last = line[n - 1];
+        // Forward pass, starting from the steady state of a constant signal
+        double steady = first / (1.0 - a1 - a2 - a3);
+        double u1 = steady, u2 = steady, u3 = steady;
+        for (int i = 0; i < n; i++) {
+            double u = line[i] + a1 * u1 + a2 * u2 + a3 * u3;
+            scratch[i] = u;
+            u3 = u2;
+            u2 = u1;
+            u1 = u;
+        }
+        // Backward pass, initialised from the last three forward outputs
+        double uPlus = last / (1.0 - a1 - a2 - a3);
+        double vPlus = uPlus / (1.0 - a1 - a2 - a3);
+        double d0 = scratch[n - 1] - uPlus;
+        double d1 = (n > 1 ? scratch[n - 2] : steady) - uPlus;
+        double d2 = (n > 2 ? scratch[n - 3] : steady) - uPlus;
+        double v1 = m[0] * d0 + m[1] * d1 + m[2] * d2 + vPlus;
+        double v2 = m[3] * d0 + m[4] * d1 + m[5] * d2 + vPlus;
+        double v3 = m[6] * d0 + m[7] * d1 + m[8] * d2 + vPlus;
+        line[n - 1] = gain * v1;
+        for (int i = n - 2; i >= 0; i--) {
+            double v = scratch[i] + a1 * v1 + a2 * v2 + a3 * v3;
+            line[i] = gain * v;
+            v3 = v2;
+            v2 = v1;
+            v1 = v;
+        }
+    }
+
+    private void convolveLine(double[] line, int n, double[] scratch) {
+        int radius = kernel.length - 1;
+        System.arraycopy(line, 0, scratch, 0, n);
+        for (int i = 0; i < n; i++) {
+            double sum = kernel[0] * scratch[i];
+            for (int k = 1; k <= radius; k++) {
+                sum += kernel[k] * (scratch[Math.max(0, i - k)] + scratch[Math.min(n - 1, i + k)]);
+            }
+            line[i] = sum;
+        }
+    }
+
+    /**
+     * Returns the number of samples after which the causal impulse response
+     * of the recursive filter stays below 1e-9 of its peak.
+     */
+    private static int getImpulseLength(double a1, double a2, double a3) {
+        double u1 = 0.0, u2 = 0.0, u3 = 0.0, peak = 0.0;
+        int below = 0;
+        for (int i = 0;; i++) {
+            double u = (i == 0 ? 1.0 : 0.0) + a1 * u1 + a2 * u2 + a3 * u3;
+            peak = Math.max(peak, Math.abs(u));
+            below = Math.abs(u) < 1.0e-9 * peak ? below + 1 : 0;
+            if (below == 3) {
+                return i - 2;
+            }
+            u3 = u2;
+            u2 = u1;
+            u1 = u;
+        }
+    }
+
+    /**
+     * One half of a normalised, sampled Gaussian kernel, truncated where it
+     * falls below 0.1% of its peak.
+     */
+    private static double[] makeKernel(double sigma) {
+        int radius = Math.max(1, (int) Math.ceil(sigma * Math.sqrt(-2.0 * Math.log(0.001))));
+        double[] k = new double[radius + 1];
+        double sum = 0.0;
+        for (int i = 0; i <= radius; i++) {
+            k[i] = sigma > 0.0 ? Math.exp(-0.5 * i * i / (sigma * sigma)) : (i == 0 ? 1.0 : 0.0);
+            sum += i == 0 ? k[i] : 2.0 * k[i];
+        }
+        for (int i = 0; i <= radius; i++) {
+            k[i] /= sum;
+        }
+        return k;
+    }
+
+    /**
+     * Triggs and Sdika, "Boundary conditions for Young-van Vliet recursive
+     * filtering", IEEE Trans. Signal Processing 54(6), 2006.
+     */
+    private static double[] makeBoundaryMatrix(double a1, double a2, double a3) {
+        double scale = 1.0 / ((1.0 + a1 - a2 + a3) * (1.0 - a1 - a2 - a3) * (1.0 + a2 + (a1 - a3) * a3));
+        return new double[]{
+            scale * (-a3 * a1 + 1.0 - a3 * a3 - a2),
+            scale * (a3 + a1) * (a2 + a3 * a1),
+            scale * a3 * (a1 + a3 * a2),
+            scale * (a1 + a3 * a2),
+            -scale * (a2 - 1.0) * (a2 + a3 * a1),
+            -scale * a3 * (a3 * a1 + a3 * a3 + a2 - 1.0),
+            scale * (a3 * a1 + a2 + a1 * a1 - a2 * a2),
+            scale * (a1 * a2 + a3 * a2 * a2 - a1 * a3 * a3 - a3 * a3 * a3 - a3 * a2 + a3),
+            scale * a3 * (a1 + a3 * a2)};
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import java.io.IOException;
+
+/**
+ * Writes tables of numerical results, such as the map, profile points and
+ * velocities, to a results directory in a particular file format.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public interface ResultWriter {
+
+    /**
+     * Writes the specified rows, which may differ in length. Missing values
+     * are represented by NaN.
+     *
+     * @param dir results directory
+     * @param name file name without extension
+     * @param headings column headings, or null
+     * @param rows values indexed by [row][column]
+     * @param missing text written in place of NaN by text formats
+     */
+    void write(String dir, String name, String[] headings, double[][] rows, String missing) throws IOException;
+
+    /**
+     * Returns a writer for the specified format, either "csv" or "npy".
+     */
+    static ResultWriter forFormat(String format) {
+        switch (format.toLowerCase()) {
+            case "csv":
+                return new CsvResultWriter();
+            case "npy":
+                return new NpyResultWriter();
+            default:
+                throw new IllegalArgumentException(String.format("Unknown output format: %s", format));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A memory-bounded, least-recently-used cache of blurred and binarised
+ * frames of an input stack. Blurred frames are keyed by (frame, blur radius)
+ * and binary frames by (frame, blur radius, thresholding method, hole size),
+ * so changing only the thresholding parameters reuses the blur. The input
+ * stack is never modified.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class SegmentationCache {
+
+    private final ImageStack input;
+    private final long maxBytes;
+    private long bytes;
+    private final LinkedHashMap<Key, ImageProcessor> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public SegmentationCache(ImageStack input, long maxBytes) {
+        this.input = input;
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized ImageProcessor getBinary(int frame, double maskBlurRadius, String threshMethod, int holeSize) {
+        Key key = new Key(frame, maskBlurRadius, threshMethod, holeSize);
+        ImageProcessor binary = entries.get(key);
+        if (binary == null) {
+            binary = RatiometricAnalyser.thresholdProcessor(getBlurred(frame, maskBlurRadius).duplicate(), threshMethod, holeSize);
+            put(key, binary);
+        }
+        return binary;
+    }
+
+    public synchronized ImageProcessor getBlurred(int frame, double maskBlurRadius) {
+        Key key = new Key(frame, maskBlurRadius, null, -1);
+        ImageProcessor blurred = entries.get(key);
+        if (blurred == null) {
+            blurred = RatiometricAnalyser.blurProcessor(input.getProcessor(frame), maskBlurRadius);
+            put(key, blurred);
+        }
+        return blurred;
+    }
+
+    /**
+     * Returns a virtual stack whose frames are segmented on demand, so only
+     * the frames actually viewed are computed.
+     */
+    public ImageStack getPreviewStack(double maskBlurRadius, String threshMethod, int holeSize) {
+        return new PreviewStack(maskBlurRadius, threshMethod, holeSize);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void put(Key key, ImageProcessor ip) {
+        entries.put(key, ip);
+        bytes += sizeOf(ip);
+        Iterator<Map.Entry<Key, ImageProcessor>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && entries.size() > 1 && it.hasNext()) {
+            Map.Entry<Key, ImageProcessor> eldest = it.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            bytes -= sizeOf(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    private static long sizeOf(ImageProcessor ip) {
+        return (long) ip.getPixelCount() * Math.max(1, ip.getBitDepth() / 8);
+    }
+
+    private static class Key {
+
+        private final int frame, holeSize;
+        private final double maskBlurRadius;
+        private final String threshMethod;
+
+        Key(int frame, double maskBlurRadius, String threshMethod, int holeSize) {
+            this.frame = frame;
+            this.maskBlurRadius = maskBlurRadius;
+            this.threshMethod = threshMethod;
+            this.holeSize = holeSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return frame == k.frame && holeSize == k.holeSize
+                    && Double.compare(maskBlurRadius, k.maskBlurRadius) == 0
+                    && Objects.equals(threshMethod, k.threshMethod);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(frame, holeSize, maskBlurRadius, threshMethod);
+        }
+    }
+
+    private class PreviewStack extends VirtualStack {
+
+        private final double maskBlurRadius;
+        private final String threshMethod;
+        private final int holeSize;
+
+        PreviewStack(double maskBlurRadius, String threshMethod, int holeSize) {
+            super(input.getWidth(), input.getHeight(), null, null);
+            this.maskBlurRadius = maskBlurRadius;
+            this.threshMethod = threshMethod;
+            this.holeSize = holeSize;
+        }
+
+        @Override
+        public ImageProcessor getProcessor(int n) {
+            return getBinary(n, maskBlurRadius, threshMethod, holeSize).duplicate();
+        }
+
+        @Override
+        public Object getPixels(int n) {
+            return getProcessor(n).getPixels();
+        }
+
+        @Override
+        public int getSize() {
+            return input.getSize();
+        }
+
+        @Override
+        public int getBitDepth() {
+            return 8;
+        }
+
+        @Override
+        public String getSliceLabel(int n) {
+            return String.format("Frame %d", n);
+        }
+    }
+}
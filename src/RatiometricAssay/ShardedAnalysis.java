@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.ImageStack;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Splits an analysis into frame ranges, or shards, that can be run in
+ * separate processes, and merges the partial results into the same outputs
+ * as a single run. Each shard segments the frames either side of its range
+ * as well, so that velocities at its edges are unaffected by the split.
+ *
+ * Each shard writes output.tif and, unless the distance maps are not saved,
+ * EDM.tif for its own frames, one chunk of frames at a time as they are
+ * computed, together with {@value #SHARD_FILE}, which holds the distance map maxima, distance
+ * rows and velocities. Distance rows are only binned as far as each frame's
+ * own maximum distance; the merge pads them to the global maximum, and the
+ * map smoothing and profile point extrema are computed over the merged
+ * map, exactly as in a single run.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class ShardedAnalysis {
+
+    public static final String SHARD_FILE = "shard.bin";
+    private static final int MAGIC = 0x52415348, VERSION = 1;
+    private static final String USAGE = String.format("Usage: ShardedAnalysis plan <frames> <shards>%n"
+            + "       ShardedAnalysis shard <stack 1> <stack 2> <parameters.properties> <first frame> <last frame> <shard directory>%n"
+            + "       ShardedAnalysis merge <parameters.properties> <output directory> <shard directory>...");
+    private final RatiometricAnalyser ra;
+
+    public ShardedAnalysis(RatiometricAnalyser ra) {
+        this.ra = ra;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        try {
+            if (args.length == 3 && args[0].equals("plan")) {
+                for (int[] range : plan(Integer.parseInt(args[1]), Integer.parseInt(args[2]))) {
+                    System.out.printf("%d %d%n", range[0], range[1]);
+                }
+            } else if (args.length == 7 && args[0].equals("shard")) {
+                ImageStack stack1 = MappedTiffStack.openStack(new File(args[1]));
+                ImageStack stack2 = MappedTiffStack.openStack(new File(args[2]));
+                if (stack1.size() != stack2.size()
+                        || stack1.getWidth() != stack2.getWidth()
+                        || stack1.getHeight() != stack2.getHeight()) {
+                    throw new IOException("Stack dimensions must match.");
+                }
+                RatiometricAnalyser ra = new BatchRunner(BatchRunner.loadParameters(new File(args[3]))).createAnalyser();
+                new ShardedAnalysis(ra).analyseShard(stack1, stack2, Integer.parseInt(args[4]), Integer.parseInt(args[5]), args[6]);
+            } else if (args.length >= 4 && args[0].equals("merge")) {
+                RatiometricAnalyser ra = new BatchRunner(BatchRunner.loadParameters(new File(args[1]))).createAnalyser();
+                File[] shardDirs = new File[args.length - 3];
+                for (int i = 3; i < args.length; i++) {
+                    shardDirs[i - 3] = new File(args[i]);
+                }
+                new ShardedAnalysis(ra).merge(shardDirs, args[2], false);
+            } else {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println(e.toString());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Divides the frames into the specified number of contiguous ranges of
+     * near-equal length.
+     *
+     * @return the first and last frame, numbered from one, of each range
+     */
+    public static int[][] plan(int frames, int shards) {
+        shards = Math.max(1, Math.min(frames, shards));
+        int[][] ranges = new int[shards][];
+        for (int s = 0; s < shards; s++) {
+            ranges[s] = new int[]{(int) ((long) s * frames / shards) + 1, (int) ((long) (s + 1) * frames / shards)};
+        }
+        return ranges;
+    }
+
+    /**
+     * Analyses frames first to last, numbered from one, writing the partial
+     * results to shardDir.
+     */
+    public void analyseShard(ImageStack stack1, ImageStack stack2, int first, int last, String shardDir) throws IOException {
+        int n = stack1.size();
+        if (first < 1 || last > n || first > last) {
+            throw new IllegalArgumentException(String.format("Invalid frame range %d-%d for %d frames.", first, last, n));
+        }
+        File dir = new File(shardDir);
+        if (!(dir.isDirectory() || dir.mkdirs())) {
+            throw new IOException(String.format("Cannot create %s", dir.getAbsolutePath()));
+        }
+        int count = last - first + 1;
+        int haloFirst = Math.max(1, first - 1);
+        int haloLast = Math.min(n, last + 1);
+        final float[] maxima = new float[count];
+        final double[][] rows = new double[count][];
+        final double[] vels = new double[count];
+        final BitMask[] masks = new BitMask[haloLast - haloFirst + 1];
+        Arrays.fill(vels, Double.NaN);
+        FrameExecutor executor = ra.createExecutor();
+        TiffStackWriter output = null, edmWriter = null;
+        Throwable failure = null;
+        try {
+            output = ra.openRatioWriter(shardDir, stack1, executor);
+            edmWriter = ra.isSaveEDM() ? ra.openEDMWriter(shardDir, stack1, executor) : null;
+            ra.startStage("Analysing", masks.length);
+            int chunkSize = executor.getParallelism();
+            for (int start = haloFirst; start <= haloLast; start += chunkSize) {
+                final int chunkFirst = start;
+                int chunkLast = Math.min(haloLast, start + chunkSize - 1);
+                final RatiometricAnalyser.FrameResult[] results = new RatiometricAnalyser.FrameResult[chunkLast - chunkFirst + 1];
+                long stageStart = System.nanoTime();
+                executor.run(chunkFirst, chunkLast, i -> {
+                    if (i < first || i > last) {
+                        masks[i - haloFirst] = ra.makeMask(stack1.getProcessor(i));
+                        return;
+                    }
+                    results[i - chunkFirst] = ra.processFrame(stack1.getProcessor(i), MappedTiffStack.getPixelData(stack2, i));
+                });
+                ra.recordFrameWall(stageStart);
+                for (int i = Math.max(first, chunkFirst); i <= Math.min(last, chunkLast); i++) {
+                    RatiometricAnalyser.FrameResult result = results[i - chunkFirst];
+                    output.write(result.ratio.getPixels());
+                    if (edmWriter != null) {
+                        edmWriter.write(result.edm.getPixels());
+                    }
+                    maxima[i - first] = result.edmMax;
+                    rows[i - first] = result.distanceProfile;
+                    masks[i - haloFirst] = result.mask;
+                }
+            }
+            int velFirst = Math.max(2, first);
+            int velLast = Math.min(n - 1, last);
+            ra.startStage("Velocity", Math.max(0, velLast - velFirst + 1));
+            executor.run(velFirst, velLast, i -> {
+                vels[i - first] = ra.calcVelocity(masks[i - 1 - haloFirst], masks[i + 1 - haloFirst], masks[i - haloFirst].getPerimeter());
+            });
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            executor.shutdown();
+            Throwable closing = failure;
+            try {
+                ra.closeWriter(edmWriter, "Write EDM.tif", failure);
+            } catch (IOException | RuntimeException e) {
+                closing = e;
+                throw e;
+            } finally {
+                ra.closeWriter(output, "Write output.tif", closing);
+            }
+        }
+        Shard shard = new Shard(dir, ra.describeParameters(), n, stack1.getWidth(), stack1.getHeight(), first, last, maxima, vels, rows);
+        shard.write();
+    }
+
+    /**
+     * Combines shards covering every frame into a complete set of results
+     * in resultsDir.
+     */
+    public void merge(File[] shardDirs, String resultsDir, boolean showResults) throws IOException {
+        if (shardDirs.length < 1) {
+            throw new IllegalArgumentException("No shards to merge.");
+        }
+        File dir = new File(resultsDir);
+        if (!(dir.isDirectory() || dir.mkdirs())) {
+            throw new IOException(String.format("Cannot create %s", dir.getAbsolutePath()));
+        }
+        Shard[] shards = new Shard[shardDirs.length];
+        for (int s = 0; s < shards.length; s++) {
+            shards[s] = Shard.read(shardDirs[s]);
+        }
+        Arrays.sort(shards, Comparator.comparingInt(shard -> shard.first));
+        String parameters = ra.describeParameters();
+        int n = shards[0].frames;
+        int width = shards[0].width;
+        int height = shards[0].height;
+        int expected = 1;
+        for (Shard shard : shards) {
+            if (!shard.parameters.equals(parameters)) {
+                throw new IOException(String.format("%s was analysed with different parameters.", shard.dir.getAbsolutePath()));
+            }
+            if (shard.frames != n || shard.width != width || shard.height != height) {
+                throw new IOException(String.format("%s is from a different input.", shard.dir.getAbsolutePath()));
+            }
+            if (shard.first != expected) {
+                throw new IOException(String.format("Shards must cover each frame exactly once; expected a shard starting at frame %d.", expected));
+            }
+            expected = shard.last + 1;
+        }
+        if (expected != n + 1) {
+            throw new IOException(String.format("No shard covers frames %d to %d.", expected, n));
+        }
+        float[] maxima = new float[n];
+        double[] vels = new double[n];
+        double[][] data = new double[n][];
+        for (Shard shard : shards) {
+            int count = shard.last - shard.first + 1;
+            System.arraycopy(shard.maxima, 0, maxima, shard.first - 1, count);
+            System.arraycopy(shard.vels, 0, vels, shard.first - 1, count);
+            System.arraycopy(shard.rows, 0, data, shard.first - 1, count);
+        }
+        int bins = RatiometricAnalyser.getMaxDistance(maxima) + 1;
+        double empty = ra.getEmptyBinValue();
+        for (int i = 0; i < n; i++) {
+            int length = data[i].length;
+            if (length < bins) {
+                data[i] = Arrays.copyOf(data[i], bins);
+                Arrays.fill(data[i], length, bins, empty);
+            }
+        }
+        if (ra.isSaveEDM()) {
+            concatenate(shards, "EDM.tif", new File(dir, "EDM.tif"), width, height);
+        }
+        ra.plotVelocities(ra.summariseVelocities(vels), resultsDir, showResults);
+        File output = new File(dir, "output.tif");
+        concatenate(shards, "output.tif", output, width, height);
+        if (showResults) {
+            ra.showOutput(output);
+        }
+        ra.saveMap(data, resultsDir);
+    }
+
+    /**
+     * Writes the frames of the named stack from each shard, in order, to
+     * target, reading one shard while the frames of the last are written.
+     * The bit depth and any ratio encoding are those of the first shard's
+     * stack, which all shards share, as they share parameters.
+     */
+    private static void concatenate(Shard[] shards, String name, File target, int width, int height) throws IOException {
+        ImageStack first = MappedTiffStack.openStack(new File(shards[0].dir, name));
+        try (TiffStackWriter writer = new TiffStackWriter(target, width, height, first.getBitDepth(), 2)) {
+            RatioEncoding encoding = first instanceof MappedTiffStack
+                    ? RatioEncoding.fromDescription(((MappedTiffStack) first).getDescription()) : null;
+            if (encoding != null) {
+                encoding.calibrate(writer);
+            }
+            for (Shard shard : shards) {
+                ImageStack stack = shard == shards[0] ? first : MappedTiffStack.openStack(new File(shard.dir, name));
+                if (stack.size() != shard.last - shard.first + 1) {
+                    throw new IOException(String.format("%s has %d frames; expected %d.", new File(shard.dir, name).getAbsolutePath(),
+                            stack.size(), shard.last - shard.first + 1));
+                }
+                for (int i = 1; i <= stack.size(); i++) {
+                    writer.write(MappedTiffStack.getPixelData(stack, i));
+                }
+            }
+        }
+    }
+
+    /**
+     * The partial results of one shard.
+     */
+    private static class Shard {
+
+        final File dir;
+        final String parameters;
+        final int frames, width, height, first, last;
+        final float[] maxima;
+        final double[] vels;
+        final double[][] rows;
+
+        Shard(File dir, String parameters, int frames, int width, int height, int first, int last, float[] maxima, double[] vels, double[][] rows) {
+            this.dir = dir;
+            this.parameters = parameters;
+            this.frames = frames;
+            this.width = width;
+            this.height = height;
+            this.first = first;
+            this.last = last;
+            this.maxima = maxima;
+            this.vels = vels;
+            this.rows = rows;
+        }
+
+        void write() throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, SHARD_FILE))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(parameters);
+                out.writeInt(frames);
+                out.writeInt(width);
+                out.writeInt(height);
+                out.writeInt(first);
+                out.writeInt(last);
+                for (int i = 0; i < maxima.length; i++) {
+                    out.writeFloat(maxima[i]);
+                    out.writeDouble(vels[i]);
+                    out.writeInt(rows[i].length);
+                    for (double v : rows[i]) {
+                        out.writeDouble(v);
+                    }
+                }
+            }
+        }
+
+        static Shard read(File dir) throws IOException {
+            File file = new File(dir, SHARD_FILE);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException(String.format("%s is not a shard file.", file.getAbsolutePath()));
+                }
+                String parameters = in.readUTF();
+                int frames = in.readInt();
+                int width = in.readInt();
+                int height = in.readInt();
+                int first = in.readInt();
+                int last = in.readInt();
+                int count = last - first + 1;
+                float[] maxima = new float[count];
+                double[] vels = new double[count];
+                double[][] rows = new double[count][];
+                for (int i = 0; i < count; i++) {
+                    maxima[i] = in.readFloat();
+                    vels[i] = in.readDouble();
+                    rows[i] = new double[in.readInt()];
+                    for (int j = 0; j < rows[i].length; j++) {
+                        rows[i][j] = in.readDouble();
+                    }
+                }
+                return new Shard(dir, parameters, frames, width, height, first, last, maxima, vels, rows);
+            }
+        }
+    }
+}
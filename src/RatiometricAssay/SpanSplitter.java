@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a range of rows or columns within a single frame across the
+ * fork-join pool of the calling thread. Outside a pool, the whole range is
+ * processed on the calling thread, so frames processed by a serial
+ * {@link FrameExecutor} stay serial.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+class SpanSplitter {
+
+    static final int GRAIN = 32;
+
+    interface SpanOp {
+
+        /**
+         * Processes [first, last) and returns the maximum of some value over
+         * the span, or zero if none is needed.
+         */
+        float apply(int first, int last);
+    }
+
+    private SpanSplitter() {
+    }
+
+    static float forEachSpan(int n, SpanOp op) {
+        return forEachSpan(n, GRAIN, op);
+    }
+
+    /**
+     * @param grain the largest span processed without splitting further
+     */
+    static float forEachSpan(int n, int grain, SpanOp op) {
+        if (n <= grain || !ForkJoinTask.inForkJoinPool()) {
+            return op.apply(0, n);
+        }
+        Span span = new Span(op, 0, n, grain);
+        span.invoke();
+        return span.max;
+    }
+
+    private static class Span extends RecursiveAction {
+
+        private final SpanOp op;
+        private final int first, last, grain;
+        private float max;
+
+        Span(SpanOp op, int first, int last, int grain) {
+            this.op = op;
+            this.first = first;
+            this.last = last;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first <= grain) {
+                max = op.apply(first, last);
+                return;
+            }
+            int mid = (first + last) >>> 1;
+            Span left = new Span(op, first, mid, grain);
+            Span right = new Span(op, mid, last, grain);
+            invokeAll(left, right);
+            max = Math.max(left.max, right.max);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import ij.ImageStack;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * A directory of stage results that can be reused by later analyses. Each
+ * entry is a subdirectory named by a key, which is a hash of the parameters
+ * the stage depends on and of a cheap description of each input: the path,
+ * length and modification time of a mapped file, which is trusted without
+ * reading any pixels, or a hash of the pixels of any other stack. Entries
+ * are written to a temporary directory and then renamed
+ * into place, so that a partly written entry is never read, and several
+ * processes may share the cache. Whenever the cache is opened or grows
+ * beyond its size limit, the least recently used entries are deleted until
+ * it is within the limit, apart from those used since the cache was opened,
+ * which an analysis may still be reading.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class StageCache {
+
+    public static final long DEFAULT_MAX_BYTES = 10L << 30;
+    private static final String TEMP_PREFIX = ".tmp-";
+    private static final int VERSION = 3;
+    private final File dir;
+    private final long maxBytes;
+    private final long opened = System.currentTimeMillis();
+
+    public interface EntryWriter {
+
+        void write(File entry) throws IOException;
+    }
+
+    /**
+     * Opens the cache in the specified directory, deleting old entries if it
+     * is over the limit, such as after the limit was lowered.
+     */
+    public StageCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        evict(null);
+    }
+
+    /**
+     * Returns a key made from the specified parts, which should include the
+     * name of the stage.
+     */
+    public static String makeKey(Object... parts) {
+        StringBuilder text = new StringBuilder(String.valueOf(VERSION));
+        for (Object part : parts) {
+            text.append(';').append(part);
+        }
+        return toHex(digest().digest(text.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Describes a mapped stack by the path, length and modification time of
+     * its file, and its dimensions, without reading any pixels.
+     *
+     * @return the description, or null if the stack is not mapped from a file
+     */
+    public static String describeFile(ImageStack stack) {
+        if (!(stack instanceof MappedTiffStack)) {
+            return null;
+        }
+        File file = ((MappedTiffStack) stack).getFile();
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        return String.format("%s;%d;%d;%d;%d;%d;%d", path, file.length(), file.lastModified(),
+                stack.getWidth(), stack.getHeight(), stack.getBitDepth(), stack.size());
+    }
+
+    /**
+     * Returns a hash of the dimensions and the pixel values of every frame of
+     * a stack. Frames are read in parallel if an executor is specified.
+     */
+    public static String hashStack(ImageStack stack, FrameExecutor executor) {
+        long[] frames = new long[stack.size()];
+        if (executor != null) {
+            executor.run(1, frames.length, i -> {
+                frames[i - 1] = hashPixels(MappedTiffStack.getPixelData(stack, i), stack.getWidth(), stack.getHeight());
+            });
+        } else {
+            for (int i = 1; i <= frames.length; i++) {
+                frames[i - 1] = hashPixels(MappedTiffStack.getPixelData(stack, i), stack.getWidth(), stack.getHeight());
+            }
+        }
+        ByteBuffer summary = ByteBuffer.allocate(12 + 8 * frames.length);
+        summary.putInt(stack.getWidth()).putInt(stack.getHeight()).putInt(stack.getBitDepth());
+        for (long f : frames) {
+            summary.putLong(f);
+        }
+        return toHex(digest().digest(summary.array()));
+    }
+
+    /**
+     * Combines the CRC-32 and Adler-32 of the pixel values, read as floats,
+     * into one 64-bit hash.
+     */
+    private static long hashPixels(Object pixels, int width, int height) {
+        CRC32 crc = new CRC32();
+        Adler32 adler = new Adler32();
+        float[] row = new float[width];
+        ByteBuffer bytes = ByteBuffer.allocate(4 * width);
+        for (int y = 0; y < height; y++) {
+            RatioKernel.getRow(pixels, y * width, width, row);
+            bytes.clear();
+            bytes.asFloatBuffer().put(row);
+            crc.update(bytes.array());
+            adler.update(bytes.array());
+        }
+        return crc.getValue() << 32 | adler.getValue();
+    }
+
+    /**
+     * Returns the entry with the specified key, marking it as recently used,
+     * or null if there is none.
+     */
+    public File get(String key) {
+        File entry = new File(dir, key);
+        if (!entry.isDirectory()) {
+            return null;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * Deletes the entry with the specified key, such as one whose inputs have
+     * changed since it was made.
+     */
+    public synchronized void remove(String key) {
+        delete(new File(dir, key));
+    }
+
+    /**
+     * Creates the entry with the specified key by calling writer on an empty
+     * directory, then evicts old entries if the cache is over its limit.
+     */
+    public synchronized void put(String key, EntryWriter writer) throws IOException {
+        if (!(dir.isDirectory() || dir.mkdirs())) {
+            throw new IOException(String.format("Cannot create %s", dir.getAbsolutePath()));
+        }
+        File temp = new File(dir, TEMP_PREFIX + UUID.randomUUID());
+        if (!temp.mkdir()) {
+            throw new IOException(String.format("Cannot create %s", temp.getAbsolutePath()));
+        }
+        File entry = new File(dir, key);
+        try {
+            writer.write(temp);
+            Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // Written by another process in the meantime
+        } catch (IOException e) {
+            if (!entry.isDirectory()) {
+                throw e;
+            }
+        } finally {
+            delete(temp);
+        }
+        evict(entry);
+    }
+
+    /**
+     * Deletes the least recently used entries, other than keep and those
+     * used since the cache was opened, until the cache is within its limit.
+     */
+    private void evict(File keep) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> entries = new ArrayList<>();
+        long total = 0L;
+        for (File f : files) {
+            if (f.isDirectory() && !f.getName().startsWith(TEMP_PREFIX)) {
+                entries.add(f);
+                total += size(f);
+            }
+        }
+        entries.sort(Comparator.comparingLong(File::lastModified));
+        for (File f : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (!f.equals(keep) && f.lastModified() < opened) {
+                long size = size(f);
+                if (delete(f)) {
+                    total -= size;
+                }
+            }
+        }
+    }
+
+    private static long size(File entry) {
+        long size = 0L;
+        File[] files = entry.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                size += f.length();
+            }
+        }
+        return size;
+    }
+
+    private static boolean delete(File entry) {
+        File[] files = entry.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        return entry.delete() || !entry.exists();
+    }
+
+    public static void writeFloats(File file, float[] values) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(values.length);
+            for (float v : values) {
+                out.writeFloat(v);
+            }
+        }
+    }
+
+    public static float[] readFloats(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            float[] values = new float[in.readInt()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = in.readFloat();
+            }
+            return values;
+        }
+    }
+
+    public static void writeRows(File file, double[][] rows) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(rows.length);
+            for (double[] row : rows) {
+                out.writeInt(row.length);
+                for (double v : row) {
+                    out.writeDouble(v);
+                }
+            }
+        }
+    }
+
+    public static double[][] readRows(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            double[][] rows = new double[in.readInt()][];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new double[in.readInt()];
+                for (int j = 0; j < rows[i].length; j++) {
+                    rows[i][j] = in.readDouble();
+                }
+            }
+            return rows;
+        }
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+}
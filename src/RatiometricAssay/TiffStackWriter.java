@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2018 David Barry <david.barry at crick dot ac dot uk>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package RatiometricAssay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes a stack to an uncompressed multi-page TIFF one frame at a time, on
+ * a thread of its own, so that frames are written while later frames are
+ * still being computed. Frames are queued in the order they are passed to
+ * {@link #write(Object)}; once the queue is full, callers wait for the disk.
+ * Pixel data is written contiguously from the start of the file and the
+ * directories are appended by {@link #close()}, once the number of frames is
+ * known. Files that would not fit in a classic TIFF are written as BigTIFF.
+ * The description follows ImageJ's, so ImageJ opens the result as a stack.
+ * Because the pixel data comes first, a stack left without directories by
+ * an interrupted run can be reopened and its remaining frames appended.
+ *
+ * @author David Barry <david.barry at crick dot ac dot uk>
+ */
+public class TiffStackWriter implements Closeable {
+
+    private static final int HEADER_BYTES = 16, BUFFER_BYTES = 1 << 22;
+    private static final int SHORT = 3, LONG = 4, ASCII = 2, LONG8 = 16;
+    private static final Object END = new Object();
+    private final File file;
+    private final FileChannel channel;
+    private final int width, height, bitDepth;
+    private final long frameBytes;
+    private final BlockingQueue<Object> queue;
+    private final Thread thread;
+    private final ByteBuffer buffer;
+    private volatile IOException failure;
+    private int submitted;
+    private volatile int written;
+    private final int resumed;
+    private double min = Double.NaN, max = Double.NaN;
+    private String calibration;
+    private boolean closed;
+
+    /**
+     * @param bitDepth 8, 16 or 32; 32-bit frames are floating point
+     * @param capacity number of frames that may wait to be written
+     */
+    public TiffStackWriter(File file, int width, int height, int bitDepth, int capacity) throws IOException {
+        this(file, width, height, bitDepth, capacity, 0);
+    }
+
+    /**
+     * Reopens a stack of which the first resumed frames were written by an
+     * earlier writer, discarding anything after them, so that writing
+     * continues from the next frame.
+     *
+     * @throws IOException if the file holds fewer than resumed frames
+     * @see #countFrames
+     */
+    public TiffStackWriter(File file, int width, int height, int bitDepth, int capacity, int resumed) throws IOException {
+        if (!(bitDepth == 8 || bitDepth == 16 || bitDepth == 32)) {
+            throw new IllegalArgumentException(String.format("Cannot write %d-bit images.", bitDepth));
+        }
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.frameBytes = (long) width * height * (bitDepth / 8);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.buffer = ByteBuffer.allocateDirect((int) Math.min(frameBytes, BUFFER_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long length = resumed > 0 ? HEADER_BYTES + resumed * frameBytes : 0L;
+            if (channel.size() < length) {
+                throw new IOException(String.format("%s holds fewer than %d frames.", file.getName(), resumed));
+            }
+            channel.truncate(length);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.resumed = resumed;
+        this.submitted = resumed;
+        this.written = resumed;
+        this.thread = new Thread(this::drain, String.format("Writing %s", file.getName()));
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues the pixels of the next frame, waiting if the queue is full. The
+     * pixels are an array, or a plane from {@link MappedTiffStack#getPlane},
+     * and must not be modified afterwards.
+     *
+     * @throws IOException if an earlier frame could not be written
+     */
+    public void write(Object pixels) throws IOException {
+        if (closed) {
+            throw new IllegalStateException(String.format("%s is closed.", file.getName()));
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (getLength(pixels) != (long) width * height) {
+            throw new IllegalArgumentException("Frame dimensions or type do not match the stack.");
+        }
+        put(pixels);
+        submitted++;
+    }
+
+    /**
+     * Records a straight-line calibration, value = c0 + c1 * pixel, in the
+     * description, in which case pixels of zero are taken to hold no value
+     * and are left out of the display range. Must be called before the first
+     * frame is written.
+     */
+    public void setCalibration(double c0, double c1, String unit) {
+        if (submitted > resumed) {
+            throw new IllegalStateException("The calibration must be set before any frames are written.");
+        }
+        calibration = String.format(Locale.ROOT, "cf=0\nc0=%s\nc1=%s\nvunit=%s\n", c0, c1, unit);
+    }
+
+    /**
+     * Returns the number of frames passed to {@link #write(Object)},
+     * including any resumed frames.
+     */
+    public int getFrameCount() {
+        return submitted;
+    }
+
+    /**
+     * Returns the number of frames that have reached the file, which may lag
+     * behind {@link #getFrameCount()} while frames are queued.
+     */
+    public int getWrittenCount() {
+        return written;
+    }
+
+    /**
+     * Returns the number of whole frames of the specified size whose pixel
+     * data a stack written by this class could hold, or zero if there is no
+     * such file. For a stack that was closed, this includes the space taken
+     * by the directories, so callers should only trust as many frames as
+     * they know were written.
+     */
+    public static int countFrames(File file, int width, int height, int bitDepth) {
+        long frameBytes = (long) width * height * (bitDepth / 8);
+        if (!file.isFile() || frameBytes < 1) {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0L, file.length() - HEADER_BYTES) / frameBytes);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Waits for every queued frame to be written, then writes the
+     * directories. A stack with no frames is deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        put(END);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        try {
+            if (failure == null && written > 0) {
+                if (Double.isNaN(min) && resumed > 0) {
+                    findRange(readFirstFrame());
+                }
+                writeDirectories();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            channel.close();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (written == 0) {
+            file.delete();
+        }
+    }
+
+    private void put(Object item) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(item);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes queued frames until the end marker arrives. After a failure,
+     * frames are discarded so that callers are never left waiting.
+     */
+    private void drain() {
+        while (true) {
+            Object pixels;
+            try {
+                pixels = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (pixels == END) {
+                return;
+            }
+            if (failure == null) {
+                try {
+                    writePixels(pixels, HEADER_BYTES + written * frameBytes);
+                    written++;
+                } catch (IOException | RuntimeException e) {
+                    failure = e instanceof IOException ? (IOException) e
+                            : new IOException(String.format("Failed to write %s", file.getName()), e);
+                }
+            }
+        }
+    }
+
+    private void writePixels(Object pixels, long position) throws IOException {
+        if (written == 0) {
+            findRange(pixels);
+        }
+        int length = (int) ((long) width * height);
+        int perBuffer = buffer.capacity() / (bitDepth / 8);
+        for (int offset = 0; offset < length; offset += perBuffer) {
+            int count = Math.min(perBuffer, length - offset);
+            buffer.clear();
+            if (pixels instanceof float[]) {
+                buffer.asFloatBuffer().put((float[]) pixels, offset, count);
+            } else if (pixels instanceof short[]) {
+                buffer.asShortBuffer().put((short[]) pixels, offset, count);
+            } else if (pixels instanceof byte[]) {
+                buffer.put((byte[]) pixels, offset, count);
+            } else if (pixels instanceof FloatBuffer) {
+                buffer.asFloatBuffer().put((FloatBuffer) slice((Buffer) pixels, offset, count));
+            } else if (pixels instanceof ShortBuffer) {
+                buffer.asShortBuffer().put((ShortBuffer) slice((Buffer) pixels, offset, count));
+            } else {
+                buffer.put((ByteBuffer) slice((Buffer) pixels, offset, count));
+            }
+            buffer.position(0).limit(count * (bitDepth / 8));
+            position = writeFully(buffer, position);
+        }
+    }
+
+    /**
+     * Returns a view of count values of a mapped plane from offset.
+     */
+    private static Buffer slice(Buffer plane, int offset, int count) {
+        Buffer view = plane instanceof FloatBuffer ? ((FloatBuffer) plane).duplicate()
+                : plane instanceof ShortBuffer ? ((ShortBuffer) plane).duplicate() : ((ByteBuffer) plane).duplicate();
+        view.position(plane.position() + offset);
+        view.limit(plane.position() + offset + count);
+        return view;
+    }
+
+    /**
+     * Records the range of the finite values in the first frame, which
+     * ImageJ uses as the display range.
+     */
+    private void findRange(Object pixels) {
+        double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+        int length = (int) ((long) width * height);
+        for (int i = 0; i < length; i++) {
+            double v;
+            if (pixels instanceof float[]) {
+                v = ((float[]) pixels)[i];
+            } else if (pixels instanceof short[]) {
+                v = ((short[]) pixels)[i] & 0xFFFF;
+            } else if (pixels instanceof byte[]) {
+                v = ((byte[]) pixels)[i] & 0xFF;
+            } else if (pixels instanceof FloatBuffer) {
+                FloatBuffer plane = (FloatBuffer) pixels;
+                v = plane.get(plane.position() + i);
+            } else if (pixels instanceof ShortBuffer) {
+                ShortBuffer plane = (ShortBuffer) pixels;
+                v = plane.get(plane.position() + i) & 0xFFFF;
+            } else {
+                ByteBuffer plane = (ByteBuffer) pixels;
+                v = plane.get(plane.position() + i) & 0xFF;
+            }
+            if (calibration != null && v == 0.0) {
+                continue;
+            }
+            if (v < lo && !Double.isInfinite(v)) {
+                lo = v;
+            }
+            if (v > hi && !Double.isInfinite(v)) {
+                hi = v;
+            }
+        }
+        if (lo <= hi) {
+            min = lo;
+            max = hi;
+        }
+    }
+
+    /**
+     * Reads back the first frame of a resumed stack, from which the display
+     * range is taken.
+     */
+    private Object readFirstFrame() throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+        long position = HEADER_BYTES;
+        while (data.hasRemaining()) {
+            int read = channel.read(data, position);
+            if (read < 0) {
+                throw new IOException(String.format("%s is truncated.", file.getName()));
+            }
+            position += read;
+        }
+        data.flip();
+        if (bitDepth == 32) {
+            float[] pixels = new float[width * height];
+            data.asFloatBuffer().get(pixels);
+            return pixels;
+        } else if (bitDepth == 16) {
+            short[] pixels = new short[width * height];
+            data.asShortBuffer().get(pixels);
+            return pixels;
+        }
+        return data.array();
+    }
+
+    private String getDescription() {
+        StringBuilder description = new StringBuilder("ImageJ=1.52c\n");
+        if (written > 1) {
+            description.append(String.format("images=%d\nslices=%d\nloop=false\n", written, written));
+        }
+        if (!Double.isNaN(min)) {
+            description.append(String.format(Locale.ROOT, "min=%s\nmax=%s\n", min, max));
+        }
+        if (calibration != null) {
+            description.append(calibration);
+        }
+        return description.append('\0').toString();
+    }
+
+    /**
+     * Appends the description and one directory per frame after the pixel
+     * data, then writes the header.
+     */
+    private void writeDirectories() throws IOException {
+        byte[] description = getDescription().getBytes(StandardCharsets.ISO_8859_1);
+        long descriptionStart = HEADER_BYTES + written * frameBytes;
+        descriptionStart += descriptionStart & 1;
+        long ifdStart = descriptionStart + description.length + (description.length & 1);
+        int tags = 12;
+        boolean big = ifdStart + (long) written * (2 + 12 * tags + 4) > 0xFFFFFFFFL;
+        int ifdBytes = big ? 8 + 20 * tags + 8 : 2 + 12 * tags + 4;
+        long position = writeFully(ByteBuffer.wrap(description), descriptionStart);
+        ByteBuffer ifds = ByteBuffer.allocate(Math.max(ifdBytes, BUFFER_BYTES / ifdBytes * ifdBytes)).order(ByteOrder.LITTLE_ENDIAN);
+        position = ifdStart;
+        for (int i = 0; i < written; i++) {
+            if (ifds.remaining() < ifdBytes) {
+                ifds.flip();
+                position = writeFully(ifds, position);
+                ifds.clear();
+            }
+            long next = i < written - 1 ? ifdStart + (i + 1L) * ifdBytes : 0L;
+            long stripOffset = HEADER_BYTES + i * frameBytes;
+            int start = ifds.position();
+            if (big) {
+                ifds.putLong(i == 0 ? tags : tags - 1);
+            } else {
+                ifds.putShort((short) (i == 0 ? tags : tags - 1));
+            }
+            entry(ifds, big, 254, LONG, 1, 0);
+            entry(ifds, big, 256, LONG, 1, width);
+            entry(ifds, big, 257, LONG, 1, height);
+            entry(ifds, big, 258, SHORT, 1, bitDepth);
+            entry(ifds, big, 259, SHORT, 1, 1);
+            entry(ifds, big, 262, SHORT, 1, 1);
+            if (i == 0) {
+                entry(ifds, big, 270, ASCII, description.length, descriptionStart);
+            }
+            entry(ifds, big, 273, big ? LONG8 : LONG, 1, stripOffset);
+            entry(ifds, big, 277, SHORT, 1, 1);
+            entry(ifds, big, 278, LONG, 1, height);
+            entry(ifds, big, 279, big ? LONG8 : LONG, 1, frameBytes);
+            entry(ifds, big, 339, SHORT, 1, bitDepth == 32 ? 3 : 1);
+            if (big) {
+                ifds.putLong(next);
+            } else {
+                ifds.putInt((int) next);
+            }
+            // Every directory takes the same space, so that offsets can be
+            // computed; only the first has a description
+            while (ifds.position() < start + ifdBytes) {
+                ifds.put((byte) 0);
+            }
+        }
+        ifds.flip();
+        writeFully(ifds, position);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I');
+        if (big) {
+            header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(ifdStart);
+        } else {
+            header.putShort((short) 42).putInt((int) ifdStart);
+        }
+        header.position(0).limit(HEADER_BYTES);
+        writeFully(header, 0L);
+    }
+
+    /**
+     * Writes one directory entry whose value fits in the entry, or whose
+     * value is the offset of data written elsewhere.
+     */
+    private static void entry(ByteBuffer ifds, boolean big, int tag, int type, long count, long value) {
+        ifds.putShort((short) tag).putShort((short) type);
+        if (big) {
+            ifds.putLong(count);
+        } else {
+            ifds.putInt((int) count);
+        }
+        int end = ifds.position() + (big ? 8 : 4);
+        if (type == SHORT) {
+            ifds.putShort((short) value);
+        } else if (type == LONG8 || (big && type == ASCII)) {
+            ifds.putLong(value);
+        } else {
+            ifds.putInt((int) value);
+        }
+        while (ifds.position() < end) {
+            ifds.put((byte) 0);
+        }
+    }
+
+    private long writeFully(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        return position;
+    }
+
+    /**
+     * Returns the number of pixels, or -1 if the type does not match the bit
+     * depth.
+     */
+    private long getLength(Object pixels) {
+        if (pixels instanceof float[] && bitDepth == 32) {
+            return ((float[]) pixels).length;
+        } else if (pixels instanceof short[] && bitDepth == 16) {
+            return ((short[]) pixels).length;
+        } else if (pixels instanceof byte[] && bitDepth == 8) {
+            return ((byte[]) pixels).length;
+        } else if (pixels instanceof FloatBuffer && bitDepth == 32 || pixels instanceof ShortBuffer && bitDepth == 16
+                || pixels instanceof ByteBuffer && bitDepth == 8) {
+            return ((Buffer) pixels).remaining();
+        }
+        return -1L;
+    }
+}
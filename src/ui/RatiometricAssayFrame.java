@@ -16,12 +16,21 @@
  */
 package ui;
 
+import RatiometricAssay.AnalysisCancelledException;
+import RatiometricAssay.AnalysisMonitor;
+import RatiometricAssay.MappedTiffStack;
 import RatiometricAssay.RatiometricAnalyser;
+import RatiometricAssay.SegmentationCache;
 import UtilClasses.GenUtils;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.io.OpenDialog;
 import ij.process.AutoThresholder;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import javax.swing.SwingWorker;
 
 /**
  *
@@ -33,8 +42,13 @@ public class RatiometricAssayFrame extends javax.swing.JFrame {
     private static String threshMethod = AutoThresholder.Method.Triangle.toString();
     private static int holeSize = 10;
     private static double spatialRes, timeRes, threshold = 0.5;
-    private ImagePlus imp;
+    private static int parallelism = Runtime.getRuntime().availableProcessors();
+    private static boolean streaming = false;
+    private static boolean checkpointing = false;
+    private ImagePlus imp, inputImp;
     private ImageStack stack1, stack2;
+    private SegmentationCache segmentationCache;
+    private AnalysisMonitor monitor;
 
     /**
      * Creates new form NewJFrame
@@ -46,10 +60,11 @@ public class RatiometricAssayFrame extends javax.swing.JFrame {
 
     final void getStacks() {
         if (IJ.getInstance() == null) {
-            stack1 = IJ.openImage().getImageStack();
-            stack2 = IJ.openImage().getImageStack();
+            stack1 = openStack("Stack 1");
+            stack2 = openStack("Stack 2");
         } else {
             ImagePlus[] imps = GenUtils.specifyInputs(new String[]{"Stack 1", "Stack 2"});
+            inputImp = imps[0];
             stack1 = imps[0].getImageStack();
             stack2 = imps[1].getImageStack();
         }
@@ -60,6 +75,23 @@ public class RatiometricAssayFrame extends javax.swing.JFrame {
         }
     }
 
+    /**
+     * Memory-maps uncompressed TIFF files, falling back to ImageJ's reader
+     * for anything else.
+     */
+    ImageStack openStack(String title) {
+        String path = new OpenDialog(title).getPath();
+        if (path == null) {
+            return null;
+        }
+        try {
+            return MappedTiffStack.openStack(new File(path));
+        } catch (IOException e) {
+            GenUtils.error(e.toString());
+            return null;
+        }
+    }
+
     void setVariables() {
         this.maskBlurRadius = Double.parseDouble(blurTextField.getText());
         this.threshMethod = (String) threshComboBox.getSelectedItem();
@@ -68,6 +100,22 @@ public class RatiometricAssayFrame extends javax.swing.JFrame {
         this.timeRes = Double.parseDouble(timeResTextField.getText());
         this.sigBlurRadius = Double.parseDouble(sigBlurTextField.getText());
         this.threshold = Double.parseDouble(thresholdTextField.getText());
+        this.parallelism = parseParallelism(parallelismTextField.getText());
+        parallelismTextField.setText(String.valueOf(parallelism));
+        this.streaming = streamingCheckBox.isSelected();
+        this.checkpointing = checkpointCheckBox.isSelected();
+    }
+
+    /**
+     * Returns the number of threads entered, at least one, or the previous
+     * value if the entry is not a whole number.
+     */
+    private static int parseParallelism(String text) {
+        try {
+            return Math.max(1, Integer.parseInt(text.trim()));
+        } catch (NumberFormatException e) {
+            return parallelism;
+        }
     }
 
     public double getMaskBlurRadius() {
@@ -94,6 +142,18 @@ public class RatiometricAssayFrame extends javax.swing.JFrame {
         return threshold;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public boolean isCheckpointing() {
+        return checkpointing;
+    }
+
     /**
      * This method is called from within the constructor to initialize the form.
      * WARNING: Do NOT modify this code. The content of this method is always
@@ -121,6 +181,10 @@ public class RatiometricAssayFrame extends javax.swing.JFrame {
         thresholdTextField = new javax.swing.JTextField();
         sigBlurRadiusLabel = new javax.swing.JLabel();
         sigBlurTextField = new javax.swing.JTextField();
+        parallelismLabel = new javax.swing.JLabel();
+        parallelismTextField = new javax.swing.JTextField();
+        streamingCheckBox = new javax.swing.JCheckBox();
+        checkpointCheckBox = new javax.swing.JCheckBox();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
         getContentPane().setLayout(new java.awt.GridBagLayout());
@@ -317,30 +381,133 @@ public class RatiometricAssayFrame extends javax.swing.JFrame {
         gridBagConstraints.insets = new java.awt.Insets(10, 10, 10, 10);
         getContentPane().add(sigBlurTextField, gridBagConstraints);
 
+        parallelismLabel.setText("Threads");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 8;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.LINE_START;
+        gridBagConstraints.insets = new java.awt.Insets(10, 10, 10, 10);
+        getContentPane().add(parallelismLabel, gridBagConstraints);
+
+        parallelismTextField.setText(String.valueOf(parallelism));
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 8;
+        gridBagConstraints.gridwidth = 2;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.LINE_END;
+        gridBagConstraints.insets = new java.awt.Insets(10, 10, 10, 10);
+        getContentPane().add(parallelismTextField, gridBagConstraints);
+
+        streamingCheckBox.setSelected(streaming);
+        streamingCheckBox.setText("Low Memory (Streaming)");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 9;
+        gridBagConstraints.gridwidth = 3;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.LINE_START;
+        gridBagConstraints.insets = new java.awt.Insets(10, 10, 10, 10);
+        getContentPane().add(streamingCheckBox, gridBagConstraints);
+
+        checkpointCheckBox.setSelected(checkpointing);
+        checkpointCheckBox.setText("Resumable (Checkpoint)");
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 10;
+        gridBagConstraints.gridwidth = 3;
+        gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.LINE_START;
+        gridBagConstraints.insets = new java.awt.Insets(10, 10, 10, 10);
+        getContentPane().add(checkpointCheckBox, gridBagConstraints);
+
         pack();
     }// </editor-fold>//GEN-END:initComponents
 
     private void cancelButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelButtonActionPerformed
+        if (monitor != null) {
+            monitor.cancel();
+            cancelButton.setEnabled(false);
+            return;
+        }
         cleanUp();
     }//GEN-LAST:event_cancelButtonActionPerformed
 
     private void previewButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_previewButtonActionPerformed
         setVariables();
-        imp = new ImagePlus("Preview Segmentation", RatiometricAnalyser.makeBinaryStack(stack1, maskBlurRadius, threshMethod, holeSize));
-        imp.show();
+        if (segmentationCache == null) {
+            segmentationCache = new SegmentationCache(stack1, Runtime.getRuntime().maxMemory() / 4);
+        }
+        ImageStack preview = segmentationCache.getPreviewStack(maskBlurRadius, threshMethod, holeSize);
+        if (imp != null && imp.getWindow() != null) {
+            int frame = imp.getCurrentSlice();
+            imp.setStack(preview);
+            imp.setSlice(frame);
+        } else {
+            imp = new ImagePlus("Preview Segmentation", preview);
+            if (inputImp != null) {
+                imp.setSlice(inputImp.getCurrentSlice());
+            }
+            imp.show();
+        }
     }//GEN-LAST:event_previewButtonActionPerformed
 
     private void okButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_okButtonActionPerformed
         setVariables();
-        cleanUp();
-        RatiometricAnalyser ra = new RatiometricAnalyser(maskBlurRadius, sigBlurRadius, threshMethod, holeSize, spatialRes, timeRes, threshold);
-        ra.analyse(stack1, stack2);
+        if (imp != null) {
+            imp.close();
+        }
+        final RatiometricAnalyser ra = new RatiometricAnalyser(maskBlurRadius, sigBlurRadius, threshMethod, holeSize, spatialRes, timeRes, threshold, parallelism);
+        ra.setCheckpointing(checkpointing);
+        final String resultsDir = ra.openResultsDirectory(stack1, stack2, streaming);
+        if (resultsDir == null) {
+            return;
+        }
+        monitor = new AnalysisMonitor(true);
+        ra.setMonitor(monitor);
+        okButton.setEnabled(false);
+        previewButton.setEnabled(false);
+        cancelButton.setText("Abort");
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                if (streaming) {
+                    ra.analyseStreaming(stack1, stack2, resultsDir, true);
+                } else {
+                    ra.analyse(stack1, stack2, resultsDir, true);
+                }
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                    IJ.showStatus("Ratiometric analysis done.");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof AnalysisCancelledException) {
+                        IJ.showStatus("Ratiometric analysis aborted - results for completed frames were saved.");
+                    } else {
+                        GenUtils.error(e.getCause().toString());
+                    }
+                } catch (InterruptedException e) {
+                    GenUtils.error(e.toString());
+                }
+                IJ.showProgress(1.0);
+                monitor = null;
+                cleanUp();
+            }
+        }.execute();
     }//GEN-LAST:event_okButtonActionPerformed
 
     void cleanUp() {
         if (imp != null) {
             imp.close();
         }
+        if (segmentationCache != null) {
+            segmentationCache.clear();
+        }
         this.dispose();
     }
 
@@ -348,16 +515,20 @@ public class RatiometricAssayFrame extends javax.swing.JFrame {
     private javax.swing.JLabel blurLabel;
     private javax.swing.JTextField blurTextField;
     private javax.swing.JButton cancelButton;
+    private javax.swing.JCheckBox checkpointCheckBox;
     private javax.swing.JLabel holeSizeLabel;
     private javax.swing.JTextField holeSizeTextField;
     private javax.swing.JLabel jLabel1;
     private javax.swing.JLabel jLabel2;
     private javax.swing.JLabel jLabel3;
     private javax.swing.JButton okButton;
+    private javax.swing.JLabel parallelismLabel;
+    private javax.swing.JTextField parallelismTextField;
     private javax.swing.JButton previewButton;
     private javax.swing.JLabel sigBlurRadiusLabel;
     private javax.swing.JTextField sigBlurTextField;
     private javax.swing.JTextField spatialResTextField;
+    private javax.swing.JCheckBox streamingCheckBox;
     private javax.swing.JComboBox<String> threshComboBox;
     private javax.swing.JLabel threshLabel;
     private javax.swing.JTextField thresholdTextField;